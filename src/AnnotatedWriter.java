@@ -0,0 +1,165 @@
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfInt;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.videoio.VideoWriter;
+
+import java.io.Closeable;
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * AnnotatedWriter class.
+ *
+ * <p>Saves the annotated frames of an analysis, either as one image per frame or as one video.
+ * Encoding happens on a writer pool so the analysis only pays for a copy of the frame. At most
+ * {@link #MAX_PENDING} frames wait to be encoded; when that many are waiting, {@link #write} blocks
+ * until one is done, so a slow disk slows the analysis down instead of filling up the memory.
+ *
+ * <p>The output is chosen with a spec:
+ * <ul>
+ *   <li>{@code jpg[:quality]} - JPEG images, quality 0 to 100, default {@value #DEFAULT_JPEG_QUALITY}</li>
+ *   <li>{@code png[:compression]} - PNG images, compression 0 to 9, default {@value #DEFAULT_PNG_COMPRESSION}</li>
+ *   <li>{@code video[:fps]} - one Motion JPEG AVI, default {@value #DEFAULT_FPS} frames per second</li>
+ * </ul>
+ * Images keep the name of their source image with the new extension. Video frames are written on a single
+ * thread in the order they are given.
+ */
+public class AnnotatedWriter implements Closeable {
+
+    public static final int MAX_PENDING = 16;
+    public static final int DEFAULT_JPEG_QUALITY = 90;
+    public static final int DEFAULT_PNG_COMPRESSION = 3;
+    public static final double DEFAULT_FPS = 10;
+
+    private enum Format { JPG, PNG, VIDEO }
+
+    private final Format format;
+    private final double parameter;
+    private final File target;
+    private final ExecutorService encoders;
+    private final Semaphore pending = new Semaphore(MAX_PENDING);
+    // Opened with the size of the first frame, only touched by the single video thread
+    private VideoWriter video;
+
+    private AnnotatedWriter(Format format, double parameter, File target, int threads) {
+        this.format = format;
+        this.parameter = parameter;
+        this.target = target;
+        this.encoders = Executors.newFixedThreadPool(format == Format.VIDEO ? 1 : threads);
+    }
+
+    /**
+     * Creates a writer from a spec
+     * @param spec e.g. "jpg:85", "png" or "video:25"
+     * @param base directory the images go into, or the video file without the extension
+     * @param threads image encoding threads, video always uses one
+     * @return the writer
+     * @throws IllegalArgumentException if the spec can't be read or its number is out of range
+     */
+    public static AnnotatedWriter create(String spec, File base, int threads) {
+        String[] parts = spec.split(":");
+        Format format;
+        try {
+            format = Format.valueOf(parts[0].trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Expected jpg, png or video but got " + parts[0]);
+        }
+        double parameter;
+        if (parts.length > 1) {
+            parameter = Double.parseDouble(parts[1].trim());
+        } else if (format == Format.JPG) {
+            parameter = DEFAULT_JPEG_QUALITY;
+        } else if (format == Format.PNG) {
+            parameter = DEFAULT_PNG_COMPRESSION;
+        } else {
+            parameter = DEFAULT_FPS;
+        }
+        if (format == Format.JPG && (parameter < 0 || parameter > 100)) {
+            throw new IllegalArgumentException("JPEG quality must be between 0 and 100 but got " + parts[1]);
+        }
+        if (format == Format.PNG && (parameter < 0 || parameter > 9)) {
+            throw new IllegalArgumentException("PNG compression must be between 0 and 9 but got " + parts[1]);
+        }
+        if (format == Format.VIDEO && !(parameter > 0)) {
+            throw new IllegalArgumentException("Frames per second must be above 0 but got " + parts[1]);
+        }
+
+        File target = format == Format.VIDEO ? new File(base.getPath() + ".avi") : base;
+        File directory = format == Format.VIDEO ? target.getAbsoluteFile().getParentFile() : target;
+        directory.mkdirs();
+        return new AnnotatedWriter(format, parameter, target, Math.max(1, threads));
+    }
+
+    /**
+     * Queues a frame to be saved, blocks while {@link #MAX_PENDING} frames are waiting
+     * @param frame the annotated frame, copied so the caller keeps ownership
+     * @param sourceName filename of the source image
+     */
+    public void write(Mat frame, String sourceName) throws InterruptedException {
+        pending.acquire();
+        Mat copy = frame.clone();
+        try {
+            encoders.execute(() -> {
+                try {
+                    encode(copy, sourceName);
+                } finally {
+                    copy.release();
+                    pending.release();
+                }
+            });
+        } catch (RuntimeException e) {
+            copy.release();
+            pending.release();
+            throw e;
+        }
+    }
+
+    private void encode(Mat frame, String sourceName) {
+        if (format == Format.VIDEO) {
+            if (video == null) {
+                video = new VideoWriter(target.getAbsolutePath(), VideoWriter.fourcc('M', 'J', 'P', 'G'), parameter, frame.size(), true);
+                if (!video.isOpened()) {
+                    System.out.println("Unable to open " + target + " for writing");
+                }
+            }
+            video.write(frame);
+            return;
+        }
+
+        String base = sourceName.lastIndexOf('.') > 0 ? sourceName.substring(0, sourceName.lastIndexOf('.')) : sourceName;
+        String extension = format == Format.JPG ? ".jpg" : ".png";
+        MatOfInt params = format == Format.JPG
+                ? new MatOfInt(Imgcodecs.IMWRITE_JPEG_QUALITY, (int)parameter)
+                : new MatOfInt(Imgcodecs.IMWRITE_PNG_COMPRESSION, (int)parameter);
+        if (!Imgcodecs.imwrite(new File(target, base + extension).getAbsolutePath(), frame, params)) {
+            System.out.println("Unable to write the annotated frame of " + sourceName);
+        }
+        params.release();
+    }
+
+    /**
+     * @return the directory with the images, or the video file
+     */
+    public File getTarget() {
+        return target;
+    }
+
+    /**
+     * Waits for the queued frames to be written and closes the video
+     */
+    @Override
+    public void close() {
+        encoders.shutdown();
+        try {
+            encoders.awaitTermination(5, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (video != null) {
+            video.release();
+        }
+    }
+}
@@ -0,0 +1,87 @@
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * BackgroundPipeline class.
+ *
+ * <p>Finds what changed against a background learned from the previous frames, instead of thresholding
+ * colors. The background is a running average that every frame moves a little towards, a constant
+ * amount of work per pixel however many frames came before:
+ * <pre>
+ *   background = (1 - learningRate) * background + learningRate * frame
+ * </pre>
+ * Pixels that differ from the background by more than the threshold are foreground, then the ROI and
+ * morphology of the config are applied like in {@link GripPipeline}. Only background pixels are
+ * learned, so a front that stops moving isn't absorbed into the background.
+ *
+ * <p>Frames must be processed in order. The first frame becomes the background, so nothing is found in it.
+ */
+public class BackgroundPipeline implements MaskPipeline {
+
+    public static final double DEFAULT_LEARNING_RATE = 0.02;
+    public static final double DEFAULT_THRESHOLD = 25;
+
+    private final double learningRate;
+    private final double threshold;
+
+    private final Mat gray = new Mat();
+    private final Mat background = new Mat();
+    private final Mat backgroundBytes = new Mat();
+    private final Mat difference = new Mat();
+    private final Mat learnMask = new Mat();
+    private final Mat lineOutput = new Mat();
+    private final Mat output = new Mat();
+
+    /**
+     * @param learningRate how far the background moves towards each frame, 0 to 1
+     * @param threshold smallest gray level difference that counts as changed
+     */
+    public BackgroundPipeline(double learningRate, double threshold) {
+        if (learningRate < 0 || learningRate > 1) {
+            throw new IllegalArgumentException("Learning rate must be between 0 and 1: " + learningRate);
+        }
+        this.learningRate = learningRate;
+        this.threshold = threshold;
+    }
+
+    public double learningRate() {
+        return learningRate;
+    }
+
+    public double threshold() {
+        return threshold;
+    }
+
+    @Override
+    public void process(Mat source, PipelineConfig config) {
+        Imgproc.cvtColor(source, gray, Imgproc.COLOR_BGR2GRAY);
+        if (background.empty() || background.size().width != gray.size().width || background.size().height != gray.size().height) {
+            gray.convertTo(background, CvType.CV_32F);
+        }
+
+        // Changed pixels
+        background.convertTo(backgroundBytes, CvType.CV_8U);
+        Core.absdiff(gray, backgroundBytes, difference);
+        Imgproc.threshold(difference, difference, threshold, 255, Imgproc.THRESH_BINARY);
+        GripPipeline.clearOutsideROI(difference, config);
+        config.morphology.apply(difference, output, lineOutput);
+
+        // Learn only where nothing was found
+        Core.bitwise_not(output, learnMask);
+        Imgproc.accumulateWeighted(gray, background, learningRate, learnMask);
+    }
+
+    @Override
+    public Mat output() {
+        return output;
+    }
+
+    /**
+     * Forgets the background, the next frame starts a new one
+     */
+    public void reset() {
+        background.release();
+    }
+}
@@ -0,0 +1,237 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BatchJob class.
+ *
+ * <p>Controls and statistics of a long running batch, like the analysis of all images. The worker
+ * calls {@link #awaitNext()} before each frame, which blocks while the job is paused and returns false
+ * once it is cancelled, so the worker stops after the frame it is on and can save what it has.
+ * Other threads pause, resume and cancel the job and read its progress.
+ *
+ * <p>The worker times its stages with {@link #time(String, long)} and reports each finished frame
+ * with {@link #frameDone()}. Frames per second are smoothed over recent frames so the ETA follows
+ * slowdowns, time spent paused doesn't count. The status is also printed every few seconds.
+ */
+public class BatchJob {
+
+    public enum State { RUNNING, PAUSED, CANCELLING, CANCELLED, FINISHED }
+
+    private static final long LOG_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(5);
+    // Weight of the newest frame in the smoothed frame time
+    private static final double SMOOTHING = 0.1;
+
+    private final String name;
+    private final int total;
+
+    private final Object lock = new Object();
+    private State state = State.RUNNING;
+    private int completed;
+    private double frameNanos = -1;
+    private long lastFrameEnd;
+    private long lastLog;
+    // Total time of each stage over all frames, in the order the stages first ran
+    private final Map<String, Long> stageNanos = new LinkedHashMap<>();
+
+    /**
+     * @param name shown in the log
+     * @param total number of frames in the batch
+     */
+    public BatchJob(String name, int total) {
+        this.name = name;
+        this.total = total;
+        lastFrameEnd = System.nanoTime();
+        lastLog = lastFrameEnd;
+    }
+
+    /**
+     * Waits while the job is paused
+     * @return true if the next frame should be processed, false if the job was cancelled
+     */
+    public boolean awaitNext() {
+        synchronized (lock) {
+            try {
+                while (state == State.PAUSED) {
+                    lock.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                state = State.CANCELLING;
+            }
+            return state == State.RUNNING;
+        }
+    }
+
+    /**
+     * Adds the time since start to a stage
+     * @param stage name of the stage
+     * @param start when the stage started, from {@link System#nanoTime()}
+     * @return now, the start of the next stage
+     */
+    public long time(String stage, long start) {
+        long now = System.nanoTime();
+        synchronized (lock) {
+            Long sum = stageNanos.get(stage);
+            stageNanos.put(stage, (sum == null ? 0 : sum) + now - start);
+        }
+        return now;
+    }
+
+    /**
+     * Counts a finished frame
+     */
+    public void frameDone() {
+        long now = System.nanoTime();
+        boolean log = false;
+        synchronized (lock) {
+            completed++;
+            long elapsed = now - lastFrameEnd;
+            lastFrameEnd = now;
+            frameNanos = frameNanos < 0 ? elapsed : frameNanos + SMOOTHING * (elapsed - frameNanos);
+            if (now - lastLog >= LOG_INTERVAL_NANOS) {
+                lastLog = now;
+                log = true;
+            }
+        }
+        if (log) {
+            System.out.println(name + ": " + status(", "));
+        }
+    }
+
+    public void pause() {
+        synchronized (lock) {
+            if (state == State.RUNNING) {
+                state = State.PAUSED;
+                System.out.println(name + " paused");
+            }
+        }
+    }
+
+    public void resume() {
+        synchronized (lock) {
+            if (state == State.PAUSED) {
+                state = State.RUNNING;
+                // The pause isn't part of the next frame's time
+                lastFrameEnd = System.nanoTime();
+                lock.notifyAll();
+                System.out.println(name + " resumed");
+            }
+        }
+    }
+
+    /**
+     * Asks the job to stop after the current frame
+     */
+    public void cancel() {
+        synchronized (lock) {
+            if (state == State.RUNNING || state == State.PAUSED) {
+                state = State.CANCELLING;
+                lock.notifyAll();
+                System.out.println(name + " cancelling");
+            }
+        }
+    }
+
+    /**
+     * Called by the worker once it has stopped and saved its results
+     */
+    public void finish() {
+        synchronized (lock) {
+            state = state == State.CANCELLING ? State.CANCELLED : State.FINISHED;
+            lock.notifyAll();
+        }
+        System.out.println(name + " " + state().name().toLowerCase() + ": " + status(", "));
+    }
+
+    /**
+     * Waits for the worker to call {@link #finish()}
+     * @param millis longest time to wait
+     * @return true if the job is done
+     */
+    public boolean awaitFinished(long millis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        synchronized (lock) {
+            while (!isDone()) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(lock, left);
+            }
+            return true;
+        }
+    }
+
+    public State state() {
+        synchronized (lock) {
+            return state;
+        }
+    }
+
+    public boolean isDone() {
+        State s = state();
+        return s == State.CANCELLED || s == State.FINISHED;
+    }
+
+    public int completed() {
+        synchronized (lock) {
+            return completed;
+        }
+    }
+
+    public int total() {
+        return total;
+    }
+
+    /**
+     * @return smoothed frames per second, 0 before the first frame
+     */
+    public double framesPerSecond() {
+        synchronized (lock) {
+            return frameNanos <= 0 ? 0 : TimeUnit.SECONDS.toNanos(1) / frameNanos;
+        }
+    }
+
+    /**
+     * @return estimated seconds until the last frame is done, -1 before the first frame
+     */
+    public double etaSeconds() {
+        synchronized (lock) {
+            if (frameNanos < 0) {
+                return -1;
+            }
+            return (total - completed) * frameNanos / TimeUnit.SECONDS.toNanos(1);
+        }
+    }
+
+    /**
+     * Progress, speed, ETA and the average time per frame of each stage, e.g.
+     * "120/500 frames (24%), 14.2 frames/s, 0:27 left, load 12.0 ms, process 40.1 ms"
+     * @param separator put between the parts, ", " for one line or "\n" for one part per line
+     * @return the status
+     */
+    public String status(String separator) {
+        StringBuilder status = new StringBuilder();
+        synchronized (lock) {
+            status.append(completed).append('/').append(total).append(" frames (")
+                    .append(total == 0 ? 100 : completed * 100 / total).append("%)");
+            if (state == State.PAUSED) {
+                status.append(separator).append("paused");
+            }
+            if (frameNanos > 0) {
+                status.append(separator).append(String.format("%.1f frames/s", TimeUnit.SECONDS.toNanos(1) / frameNanos));
+                if (state == State.RUNNING) {
+                    long eta = Math.round((total - completed) * frameNanos / TimeUnit.SECONDS.toNanos(1));
+                    status.append(separator).append(String.format("%d:%02d left", eta / 60, eta % 60));
+                }
+            }
+            if (completed > 0) {
+                for (Map.Entry<String, Long> stage : stageNanos.entrySet()) {
+                    status.append(separator).append(String.format("%s %.1f ms", stage.getKey(), stage.getValue() / 1e6 / completed));
+                }
+            }
+        }
+        return status.toString();
+    }
+}
@@ -0,0 +1,45 @@
+/**
+ * Blob class.
+ *
+ * <p>Measurements of one connected region of a binary mask: its bounding box,
+ * area in pixels and centroid.
+ */
+public class Blob {
+
+    public final int x;
+    public final int y;
+    public final int width;
+    public final int height;
+    public final double area;
+    public final double centroidX;
+    public final double centroidY;
+
+    public Blob(int x, int y, int width, int height, double area, double centroidX, double centroidY) {
+        this.x = x;
+        this.y = y;
+        this.width = width;
+        this.height = height;
+        this.area = area;
+        this.centroidX = centroidX;
+        this.centroidY = centroidY;
+    }
+
+    /**
+     * @return the highest (smallest y) pixel row of the blob
+     */
+    public int highest() {
+        return y;
+    }
+
+    /**
+     * @return the row just below the blob, matching the lowest pixel reported by the analysis
+     */
+    public int lowest() {
+        return y + height;
+    }
+
+    @Override
+    public String toString() {
+        return "Blob[x=" + x + ", y=" + y + ", w=" + width + ", h=" + height + ", area=" + area + "]";
+    }
+}
@@ -0,0 +1,175 @@
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.imgproc.Moments;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * BlobFinder class.
+ *
+ * <p>Finds blobs in the binary output of {@link GripPipeline}.
+ */
+public class BlobFinder {
+
+    /** Smallest object kept when measuring several objects per frame, in pixels */
+    public static final int DEFAULT_MIN_AREA = 20;
+
+    private BlobFinder() {
+    }
+
+    /**
+     * Finds the contour with the largest area, the way the analysis has always measured.
+     * @param mask binary image, e.g. {@link GripPipeline#cvDilateOutput()}
+     * @return the largest blob, or null if the mask is empty
+     */
+    public static Blob largest(Mat mask) {
+        ArrayList<MatOfPoint> contours = new ArrayList<>();
+        Mat hierarchy = new Mat();
+        Imgproc.findContours(mask, contours, hierarchy, Imgproc.RETR_TREE, Imgproc.CHAIN_APPROX_NONE);
+        hierarchy.release();
+        if (contours.isEmpty()) {
+            return null;
+        }
+
+        // Area of each contour is only computed once
+        MatOfPoint largestContour = contours.get(0);
+        double largestArea = Imgproc.contourArea(largestContour);
+        for (int i = 1; i < contours.size(); i++) {
+            double area = Imgproc.contourArea(contours.get(i));
+            if (area > largestArea) {
+                largestArea = area;
+                largestContour = contours.get(i);
+            }
+        }
+
+        Blob blob = measure(largestContour, largestArea, 0, 0);
+        for (MatOfPoint contour : contours) {
+            contour.release();
+        }
+        return blob;
+    }
+
+    /**
+     * Finds every connected region of at least minArea pixels. Bounding box, area and centroid
+     * of all regions come out of one labelling pass, so small regions are dropped by comparing a
+     * number without any work on their outlines.
+     * @param mask binary image, e.g. {@link GripPipeline#cvDilateOutput()}
+     * @param minArea smallest area in pixels that is kept
+     * @return the blobs from top to bottom, empty if there are none. The area is the pixel count,
+     *         which is a bit larger than the contour area {@link #largest(Mat)} reports.
+     */
+    public static List<Blob> all(Mat mask, int minArea) {
+        List<Blob> blobs = new ArrayList<>();
+        label(mask, minArea, blobs, false);
+        return blobs;
+    }
+
+    /**
+     * Finds every object like {@link #all(Mat, int)} and the largest blob like {@link #largest(Mat)}
+     * out of the same labelling. A contour never covers more than its bounding box, so components
+     * are traced from the largest box down and only while their box could still beat the largest
+     * contour so far, usually just one. Each is traced on its own box, not on the whole mask.
+     * @param mask binary image, e.g. {@link GripPipeline#cvDilateOutput()}
+     * @param minArea smallest area in pixels of the objects
+     * @param objects receives the objects from top to bottom
+     * @return the largest blob, as {@link #largest(Mat)} measures it, or null if the mask is empty
+     */
+    public static Blob largestAndAll(Mat mask, int minArea, List<Blob> objects) {
+        return label(mask, minArea, objects, true);
+    }
+
+    private static Blob label(Mat mask, int minArea, List<Blob> blobs, boolean traceLargest) {
+        Mat labels = new Mat();
+        Mat stats = new Mat();
+        Mat centroids = new Mat();
+        int n = Imgproc.connectedComponentsWithStats(mask, labels, stats, centroids, 8, CvType.CV_32S);
+
+        Blob largest = null;
+        if (n > 1) {
+            // One bulk read each instead of a JNI call per value
+            int[] stat = new int[n * 5];
+            double[] centroid = new double[n * 2];
+            stats.get(0, 0, stat);
+            centroids.get(0, 0, centroid);
+            // Label 0 is the background
+            for (int label = 1; label < n; label++) {
+                int area = stat[label * 5 + Imgproc.CC_STAT_AREA];
+                if (area < minArea) {
+                    continue;
+                }
+                blobs.add(new Blob(stat[label * 5 + Imgproc.CC_STAT_LEFT], stat[label * 5 + Imgproc.CC_STAT_TOP],
+                        stat[label * 5 + Imgproc.CC_STAT_WIDTH], stat[label * 5 + Imgproc.CC_STAT_HEIGHT],
+                        area, centroid[label * 2], centroid[label * 2 + 1]));
+            }
+            if (traceLargest) {
+                largest = traceLargest(labels, stat, n);
+            }
+        }
+        labels.release();
+        stats.release();
+        centroids.release();
+        return largest;
+    }
+
+    private static Blob traceLargest(Mat labels, int[] stat, int n) {
+        Integer[] byBox = new Integer[n - 1];
+        for (int label = 1; label < n; label++) {
+            byBox[label - 1] = label;
+        }
+        Arrays.sort(byBox, (a, b) -> Long.compare(boxArea(stat, b), boxArea(stat, a)));
+
+        Blob largest = null;
+        Mat component = new Mat();
+        for (int label : byBox) {
+            if (largest != null && boxArea(stat, label) <= largest.area) {
+                break;
+            }
+            Rect box = new Rect(stat[label * 5 + Imgproc.CC_STAT_LEFT], stat[label * 5 + Imgproc.CC_STAT_TOP],
+                    stat[label * 5 + Imgproc.CC_STAT_WIDTH], stat[label * 5 + Imgproc.CC_STAT_HEIGHT]);
+            Mat region = labels.submat(box);
+            Core.compare(region, new Scalar(label), component, Core.CMP_EQ);
+            region.release();
+
+            ArrayList<MatOfPoint> contours = new ArrayList<>();
+            Mat hierarchy = new Mat();
+            Imgproc.findContours(component, contours, hierarchy, Imgproc.RETR_EXTERNAL, Imgproc.CHAIN_APPROX_NONE);
+            hierarchy.release();
+            for (MatOfPoint contour : contours) {
+                double area = Imgproc.contourArea(contour);
+                if (largest == null || area > largest.area) {
+                    largest = measure(contour, area, box.x, box.y);
+                }
+                contour.release();
+            }
+        }
+        component.release();
+        return largest;
+    }
+
+    private static long boxArea(int[] stat, int label) {
+        return (long) stat[label * 5 + Imgproc.CC_STAT_WIDTH] * stat[label * 5 + Imgproc.CC_STAT_HEIGHT];
+    }
+
+    /**
+     * Bounding box and centroid of a contour traced at an offset into the mask
+     */
+    private static Blob measure(MatOfPoint contour, double area, int offsetX, int offsetY) {
+        Rect boundingRect = Imgproc.boundingRect(contour);
+        Moments moments = Imgproc.moments(contour);
+        double centroidX = boundingRect.x + boundingRect.width / 2.0;
+        double centroidY = boundingRect.y + boundingRect.height / 2.0;
+        if (moments.get_m00() != 0) {
+            centroidX = moments.get_m10() / moments.get_m00();
+            centroidY = moments.get_m01() / moments.get_m00();
+        }
+        return new Blob(boundingRect.x + offsetX, boundingRect.y + offsetY, boundingRect.width, boundingRect.height,
+                area, centroidX + offsetX, centroidY + offsetY);
+    }
+}
@@ -0,0 +1,130 @@
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.File;
+
+/**
+ * ChangeDetector class.
+ *
+ * <p>Spots frames that look the same as the last measured frame, so long stretches where nothing
+ * happens don't have to be decoded and measured in full. A frame's signature is its ROI in gray,
+ * shrunk to {@value #SIGNATURE_SIZE}x{@value #SIGNATURE_SIZE} pixels. Images are decoded at an eighth
+ * of their size for it, which JPEG does without decoding the full image.
+ *
+ * <p>A frame can keep the last measurement when its signature differs from the last measured frame's
+ * by at most the tolerance, as the mean gray level difference. Comparing against the measured frame
+ * rather than the previous one means slow changes add up until they are measured. After
+ * {@code maxCarried} frames in a row kept a measurement the next one is measured anyway. Not thread safe.
+ */
+public class ChangeDetector {
+
+    public static final int SIGNATURE_SIZE = 16;
+    public static final double DEFAULT_TOLERANCE = 2;
+    public static final int DEFAULT_MAX_CARRIED = 30;
+
+    private final double tolerance;
+    private final int maxCarried;
+    private final Mat gray = new Mat();
+    private final Mat tiny = new Mat();
+    private byte[] reference;
+    private int carried;
+    private long carriedTotal;
+
+    /**
+     * @param tolerance largest mean gray level difference that still counts as unchanged
+     * @param maxCarried most frames in a row that keep a measurement, at least 1
+     */
+    public ChangeDetector(double tolerance, int maxCarried) {
+        if (maxCarried < 1) {
+            throw new IllegalArgumentException("At least one frame must be allowed to keep a measurement: " + maxCarried);
+        }
+        this.tolerance = tolerance;
+        this.maxCarried = maxCarried;
+    }
+
+    /**
+     * Signature of an image file from a reduced decode
+     * @param file the image
+     * @param config the values, only the ROI is used
+     * @param roiSpace size of the frames the ROI was picked on
+     * @return the signature, or null if the image can't be read
+     */
+    public byte[] signature(File file, PipelineConfig config, Size roiSpace) {
+        Mat reduced = Imgcodecs.imread(file.getAbsolutePath(), Imgcodecs.IMREAD_REDUCED_GRAYSCALE_8);
+        byte[] signature = reduced.empty() ? null : signature(reduced, config, roiSpace);
+        reduced.release();
+        return signature;
+    }
+
+    /**
+     * Signature of a decoded frame
+     * @param frame BGR or gray frame of any size
+     * @param config the values, only the ROI is used
+     * @param roiSpace size of the frames the ROI was picked on
+     * @return the signature
+     */
+    public byte[] signature(Mat frame, PipelineConfig config, Size roiSpace) {
+        if (frame.channels() == 3) {
+            Imgproc.cvtColor(frame, gray, Imgproc.COLOR_BGR2GRAY);
+        } else {
+            frame.copyTo(gray);
+        }
+        Mat area = gray;
+        if (config.roi) {
+            PipelineConfig scaled = config.transformROI(gray.cols() / roiSpace.width, gray.rows() / roiSpace.height, 0, 0);
+            Rect rect = GripPipeline.roiRect(scaled, gray.cols(), gray.rows());
+            if (rect != null) {
+                area = gray.submat(rect);
+            }
+        }
+        Imgproc.resize(area, tiny, new Size(SIGNATURE_SIZE, SIGNATURE_SIZE), 0, 0, Imgproc.INTER_AREA);
+        if (area != gray) {
+            area.release();
+        }
+        byte[] signature = new byte[SIGNATURE_SIZE * SIGNATURE_SIZE];
+        tiny.get(0, 0, signature);
+        return signature;
+    }
+
+    /**
+     * @param signature signature of the frame, null if there is none
+     * @return whether the frame can keep the last measurement
+     */
+    public boolean canCarry(byte[] signature) {
+        if (signature == null || reference == null || carried >= maxCarried) {
+            return false;
+        }
+        long difference = 0;
+        for (int i = 0; i < signature.length; i++) {
+            difference += Math.abs((signature[i] & 0xFF) - (reference[i] & 0xFF));
+        }
+        return difference <= tolerance * signature.length;
+    }
+
+    /**
+     * Call when a frame kept the last measurement
+     */
+    public void carried() {
+        carried++;
+        carriedTotal++;
+    }
+
+    /**
+     * Call when a frame was measured, it becomes the one later frames are compared with
+     * @param signature signature of the frame, null if there is none
+     */
+    public void measured(byte[] signature) {
+        reference = signature;
+        carried = 0;
+    }
+
+    /**
+     * @return number of frames that kept a measurement so far
+     */
+    public long carriedTotal() {
+        return carriedTotal;
+    }
+}
@@ -0,0 +1,139 @@
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * CoarseToFineProcessor class.
+ *
+ * <p>Measures the largest blob of a full resolution image without running the pipeline over all of it.
+ * The image is first shrunk by a factor and thresholded as a whole, which finds the blob, or finds
+ * nothing and ends there. The pipeline then runs at full resolution only on two bands along the top
+ * and bottom edges of the blob's coarse bounding box, which gives the highest and lowest pixel at full
+ * precision. The bands are as wide as the box plus a margin and reach far enough on both sides of an
+ * edge to cover the coarse rounding and the morphology. Each band is labelled and only the components
+ * that overlap the coarse box count, so other blobs and speckles in the margin don't move the edge.
+ *
+ * <p>The left and right side, area and centroid are scaled up from the coarse blob. Detail the coarse
+ * image doesn't show at all, like a part thinner than the factor reaching beyond the band, isn't found.
+ * Another blob that reaches into the coarse box is counted as well, since a band can't tell it apart.
+ * Not thread safe.
+ */
+public class CoarseToFineProcessor {
+
+    public static final int DEFAULT_FACTOR = 4;
+
+    private final int factor;
+    private final GripPipeline coarse = new GripPipeline();
+    private final GripPipeline fine = new GripPipeline();
+    private final Mat small = new Mat();
+    private final Mat labels = new Mat();
+    private final Mat stats = new Mat();
+    private final Mat centroids = new Mat();
+
+    /**
+     * @param factor how many times smaller the coarse image is, at least 2
+     */
+    public CoarseToFineProcessor(int factor) {
+        if (factor < 2) {
+            throw new IllegalArgumentException("Factor must be at least 2: " + factor);
+        }
+        this.factor = factor;
+    }
+
+    public int factor() {
+        return factor;
+    }
+
+    /**
+     * Finds the largest blob
+     * @param source the full image
+     * @param config the values, ROI in source image coordinates
+     * @return the largest blob in source image coordinates, or null if nothing was found
+     */
+    public Blob process(Mat source, PipelineConfig config) {
+        // Coarse pass over the whole image
+        Imgproc.resize(source, small, new Size(Math.max(1, source.cols() / factor), Math.max(1, source.rows() / factor)), 0, 0, Imgproc.INTER_AREA);
+        double scaleX = (double) source.cols() / small.cols();
+        double scaleY = (double) source.rows() / small.rows();
+        PipelineConfig coarseConfig = config.transformROI(1 / scaleX, 1 / scaleY, 0, 0)
+                .withMorphology(config.morphology.scaled(1.0 / factor));
+        coarse.process(small, coarseConfig);
+        Blob found = BlobFinder.largest(coarse.output());
+        if (found == null) {
+            return null;
+        }
+
+        int x0 = (int) Math.floor(found.x * scaleX);
+        int x1 = Math.min(source.cols(), (int) Math.ceil((found.x + found.width) * scaleX));
+        int y0 = (int) Math.floor(found.y * scaleY);
+        int y1 = Math.min(source.rows(), (int) Math.ceil((found.y + found.height) * scaleY));
+
+        // Fine pass along the top and bottom edge
+        int margin = 2 * factor + config.morphology.radius();
+        int halo = GripPipeline.haloRadius(config);
+        int bandX0 = Math.max(0, x0 - margin);
+        int bandX1 = Math.min(source.cols(), x1 + margin);
+        Rect box = new Rect(x0, y0, x1 - x0, y1 - y0);
+        int[] top = foregroundRows(source, config, bandX0, bandX1, y0 - margin, y0 + margin, halo, box);
+        int[] bottom = foregroundRows(source, config, bandX0, bandX1, y1 - margin, y1 + margin, halo, box);
+        // Keep the coarse edge if the fine pass disagrees
+        int highest = top != null ? top[0] : y0;
+        int lowest = bottom != null ? bottom[1] : y1;
+        if (lowest <= highest) {
+            highest = y0;
+            lowest = y1;
+        }
+
+        return new Blob(x0, highest, x1 - x0, lowest - highest, found.area * scaleX * scaleY,
+                found.centroidX * scaleX, found.centroidY * scaleY);
+    }
+
+    /**
+     * Runs the pipeline at full resolution on a band
+     * @param box the coarse bounding box in source coordinates, components outside of it are ignored
+     * @return first foreground row and the row below the last one in source coordinates, or null if there are none
+     */
+    private int[] foregroundRows(Mat source, PipelineConfig config, int x0, int x1, int y0, int y1, int halo, Rect box) {
+        y0 = Math.max(0, y0);
+        y1 = Math.min(source.rows(), y1);
+        if (x1 <= x0 || y1 <= y0) {
+            return null;
+        }
+        // Band including its halo, clipped to the image
+        int paddedX0 = Math.max(0, x0 - halo);
+        int paddedY0 = Math.max(0, y0 - halo);
+        int paddedX1 = Math.min(source.cols(), x1 + halo);
+        int paddedY1 = Math.min(source.rows(), y1 + halo);
+        Mat band = source.submat(paddedY0, paddedY1, paddedX0, paddedX1);
+        fine.process(band, config.transformROI(1, 1, -paddedX0, -paddedY0));
+        Mat mask = fine.output().submat(new Rect(x0 - paddedX0, y0 - paddedY0, x1 - x0, y1 - y0));
+
+        int n = Imgproc.connectedComponentsWithStats(mask, labels, stats, centroids, 8, CvType.CV_32S);
+        mask.release();
+        band.release();
+        if (n <= 1) {
+            return null;
+        }
+        // One bulk read instead of a JNI call per value
+        int[] stat = new int[n * 5];
+        stats.get(0, 0, stat);
+
+        int first = Integer.MAX_VALUE;
+        int end = Integer.MIN_VALUE;
+        // Label 0 is the background
+        for (int label = 1; label < n; label++) {
+            int left = x0 + stat[label * 5 + Imgproc.CC_STAT_LEFT];
+            int top = y0 + stat[label * 5 + Imgproc.CC_STAT_TOP];
+            int right = left + stat[label * 5 + Imgproc.CC_STAT_WIDTH];
+            int bottom = top + stat[label * 5 + Imgproc.CC_STAT_HEIGHT];
+            if (right <= box.x || left >= box.x + box.width || bottom <= box.y || top >= box.y + box.height) {
+                continue;
+            }
+            first = Math.min(first, top);
+            end = Math.max(end, bottom);
+        }
+        return first > end ? null : new int[] {first, end};
+    }
+}
@@ -0,0 +1,144 @@
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.List;
+
+/**
+ * CompiledGraph class.
+ *
+ * <p>A {@link PipelineGraph} ready to run: the stages in dependency order, each writing into one of a
+ * few buffers shared between stages of the same output type whose values are never alive at the same
+ * time. Not thread safe, compile one per thread.
+ */
+public class CompiledGraph implements MaskPipeline {
+
+    private final List<PipelineGraph.Stage> stages;
+    private final int[] slots;
+    private final int[][] inputSlots;
+    private final Mat[] buffers;
+    // Fixed ROIs as configs so they clip the same way as the selected one
+    private final PipelineConfig[] fixedRois;
+    // Horizontal line of a split cross
+    private final Mat lineOutput = new Mat();
+    // HLS image of each colorThreshold stage, kept out of the mask buffers
+    private final Mat[] scratch;
+    private final Mat output;
+
+    CompiledGraph(List<PipelineGraph.Stage> stages, int[] slots, int[][] inputSlots, int bufferCount) {
+        this.stages = stages;
+        this.slots = slots;
+        this.inputSlots = inputSlots;
+        this.buffers = new Mat[bufferCount];
+        for (int i = 0; i < bufferCount; i++) {
+            buffers[i] = new Mat();
+        }
+        this.fixedRois = new PipelineConfig[stages.size()];
+        this.scratch = new Mat[stages.size()];
+        for (int i = 0; i < stages.size(); i++) {
+            if (stages.get(i).op == PipelineGraph.Op.COLOR_THRESHOLD) {
+                scratch[i] = new Mat();
+            }
+            double[] rect = stages.get(i).rect;
+            if (rect != null) {
+                fixedRois[i] = PipelineConfig.DEFAULT.withROI(new Point(rect[0], rect[1]), new Point(rect[2], rect[3]));
+            }
+        }
+        // The output stage runs last
+        this.output = buffers[slots[slots.length - 1]];
+    }
+
+    /**
+     * @return how many buffers the stages share
+     */
+    public int bufferCount() {
+        return buffers.length;
+    }
+
+    /**
+     * @return the stages and the buffer each writes to, e.g. "roi[0] -> mask[1] -> clean[2]"
+     */
+    public String describe() {
+        StringBuilder description = new StringBuilder();
+        for (int i = 0; i < stages.size(); i++) {
+            if (i > 0) {
+                description.append(" -> ");
+            }
+            description.append(stages.get(i).id).append('[').append(slots[i]).append(']');
+        }
+        return description.toString();
+    }
+
+    @Override
+    public void process(Mat source, PipelineConfig config) {
+        for (int i = 0; i < stages.size(); i++) {
+            PipelineGraph.Stage stage = stages.get(i);
+            Mat in = input(source, i, 0);
+            Mat out = buffers[slots[i]];
+            switch (stage.op) {
+                case BLUR:
+                    Imgproc.GaussianBlur(in, out, new Size(stage.size, stage.size), stage.sigma, stage.sigma, Core.BORDER_DEFAULT);
+                    break;
+                case CVT_COLOR:
+                    Imgproc.cvtColor(in, out, stage.code);
+                    break;
+                case IN_RANGE:
+                    Core.inRange(in, new Scalar(stage.lower), new Scalar(stage.upper), out);
+                    break;
+                case COLOR_THRESHOLD:
+                    colorThreshold(in, config, scratch[i], out);
+                    break;
+                case MORPHOLOGY:
+                    (stage.spec != null ? stage.spec : config.morphology).apply(in, out, lineOutput);
+                    break;
+                case ROI:
+                    if (in != out) {
+                        in.copyTo(out);
+                    }
+                    GripPipeline.clearOutsideROI(out, fixedRois[i] != null ? fixedRois[i] : config);
+                    break;
+                case AND:
+                    Core.bitwise_and(in, input(source, i, 1), out);
+                    break;
+                case OR:
+                    Core.bitwise_or(in, input(source, i, 1), out);
+                    break;
+                case XOR:
+                    Core.bitwise_xor(in, input(source, i, 1), out);
+                    break;
+                case ABSDIFF:
+                    Core.absdiff(in, input(source, i, 1), out);
+                    break;
+                case NOT:
+                    Core.bitwise_not(in, out);
+                    break;
+            }
+        }
+    }
+
+    private Mat input(Mat source, int stage, int input) {
+        int slot = inputSlots[stage][input];
+        return slot < 0 ? source : buffers[slot];
+    }
+
+    @Override
+    public Mat output() {
+        return output;
+    }
+
+    /**
+     * Same threshold as {@link GripPipeline}: HLS bounds or RGB bounds on the BGR image
+     */
+    private static void colorThreshold(Mat in, PipelineConfig config, Mat hls, Mat out) {
+        if (config.hsl) {
+            Imgproc.cvtColor(in, hls, Imgproc.COLOR_BGR2HLS);
+            Core.inRange(hls, config.hslLower(), config.hslUpper(), out);
+        } else {
+            Core.inRange(in, new Scalar(config.blueLow, config.greenLow, config.redLow),
+                    new Scalar(config.blueHigh, config.greenHigh, config.redHigh), out);
+        }
+    }
+}
@@ -0,0 +1,194 @@
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * FrameCache class.
+ *
+ * <p>Decoded frames kept in memory so going back and forth in the GUI doesn't decode the same
+ * file again. Frames are keyed by file and the size they are resized to, a file that changed on disk
+ * is decoded again. The least recently used frames are dropped once the cached frames take more than
+ * the byte budget.
+ *
+ * <p>Callers get their own copy, which they can draw on and should release. Safe to use from the
+ * GUI and the analysis thread at the same time.
+ */
+public class FrameCache {
+
+    private static final String[] IMAGE_EXTENSIONS = {".jpg", ".jpeg", ".png", ".bmp", ".tif", ".tiff"};
+
+    private final long budgetBytes;
+    private long usedBytes;
+    // Access order, the eldest entry is the least recently used
+    private final LinkedHashMap<Key, Mat> frames = new LinkedHashMap<>(16, 0.75f, true);
+    private int hits, misses;
+
+    /**
+     * @param budgetBytes most bytes of pixel data to keep
+     */
+    public FrameCache(long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+    }
+
+    /**
+     * @param file any file
+     * @return whether the file is an image this cache can decode, judged by its extension
+     */
+    public static boolean isImage(File file) {
+        return hasImageExtension(file.getName()) && file.isFile();
+    }
+
+    /**
+     * @param name a filename
+     * @return whether the name has the extension of an image this cache can decode
+     */
+    public static boolean hasImageExtension(String name) {
+        String lower = name.toLowerCase();
+        for (String extension : IMAGE_EXTENSIONS) {
+            if (lower.endsWith(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Decodes a frame into the cache ahead of time, e.g. while the images are still being listed.
+     * Does nothing if the frame is already cached.
+     * @param file the image file
+     * @param size size to resize to, or null for the full resolution
+     */
+    public void prefetch(File file, Size size) {
+        Mat frame = get(file, size);
+        if (frame != null) {
+            frame.release();
+        }
+    }
+
+    /**
+     * Gets a frame, decoding and caching it if it isn't cached yet
+     * @param file the image file
+     * @param size size to resize to, or null for the full resolution
+     * @return a copy of the frame owned by the caller
+     */
+    public Mat get(File file, Size size) {
+        Key key = new Key(file, size);
+        synchronized (this) {
+            Mat cached = frames.get(key);
+            if (cached != null) {
+                hits++;
+                return cached.clone();
+            }
+            misses++;
+        }
+
+        // Decode outside the lock, another thread may decode the same frame but that's only wasted work
+        Mat frame = decode(file, size);
+        synchronized (this) {
+            Mat previous = frames.put(key, frame.clone());
+            if (previous != null) {
+                usedBytes -= bytes(previous);
+                previous.release();
+            }
+            usedBytes += bytes(frame);
+            evict();
+        }
+        return frame;
+    }
+
+    /**
+     * Gets a frame from the cache, or decodes it without caching it. For frames that are read once,
+     * like the analysis going through all images, so they don't push out the frames the GUI uses.
+     * @param file the image file
+     * @param size size to resize to, or null for the full resolution
+     * @return a copy of the frame owned by the caller
+     */
+    public Mat read(File file, Size size) {
+        synchronized (this) {
+            Mat cached = frames.get(new Key(file, size));
+            if (cached != null) {
+                hits++;
+                return cached.clone();
+            }
+            misses++;
+        }
+        return decode(file, size);
+    }
+
+    public synchronized void clear() {
+        for (Mat frame : frames.values()) {
+            frame.release();
+        }
+        frames.clear();
+        usedBytes = 0;
+    }
+
+    /**
+     * @return the cache statistics, e.g. "3 frames, 12.4 MB, 10 hits, 3 misses"
+     */
+    public synchronized String stats() {
+        return String.format("%d frames, %.1f MB, %d hits, %d misses", frames.size(), usedBytes / 1e6, hits, misses);
+    }
+
+    private static Mat decode(File file, Size size) {
+        Mat frame = Imgcodecs.imread(file.getAbsolutePath());
+        if (size != null) {
+            Imgproc.resize(frame, frame, size);
+        }
+        return frame;
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<Key, Mat>> eldest = frames.entrySet().iterator();
+        // Always keep the newest frame, even if it alone is over the budget
+        while (usedBytes > budgetBytes && frames.size() > 1) {
+            Mat frame = eldest.next().getValue();
+            eldest.remove();
+            usedBytes -= bytes(frame);
+            frame.release();
+        }
+    }
+
+    private static long bytes(Mat frame) {
+        return frame.total() * frame.elemSize();
+    }
+
+    /**
+     * File, modification time and decode size
+     */
+    private static final class Key {
+        final String path;
+        final long modified;
+        final int width, height;
+
+        Key(File file, Size size) {
+            path = file.getAbsolutePath();
+            modified = file.lastModified();
+            width = size == null ? 0 : (int)size.width;
+            height = size == null ? 0 : (int)size.height;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key)o;
+            return path.equals(other.path) && modified == other.modified && width == other.width && height == other.height;
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = path.hashCode();
+            hash = 31 * hash + Long.hashCode(modified);
+            hash = 31 * hash + width;
+            return 31 * hash + height;
+        }
+    }
+}
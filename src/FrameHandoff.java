@@ -0,0 +1,35 @@
+import org.opencv.core.Mat;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * FrameHandoff class.
+ *
+ * <p>Lock-free handoff of the newest frame from a worker thread to the draw loop.
+ * The worker publishes a Mat and gives up ownership of it. A frame that is replaced before the
+ * draw loop takes it is released straight away, so no work is spent on frames nobody sees.
+ */
+public class FrameHandoff {
+
+    private final AtomicReference<Mat> latest = new AtomicReference<>();
+
+    /**
+     * Publishes a frame, replacing any frame that hasn't been taken yet.
+     * The caller must not use the frame afterwards.
+     * @param frame the newest frame
+     */
+    public void publish(Mat frame) {
+        Mat skipped = latest.getAndSet(frame);
+        if (skipped != null) {
+            skipped.release();
+        }
+    }
+
+    /**
+     * Takes the newest frame. The caller owns it and should release it once done.
+     * @return the newest frame, or null if nothing new was published since the last take
+     */
+    public Mat take() {
+        return latest.getAndSet(null);
+    }
+}
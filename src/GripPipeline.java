@@ -1,6 +1,8 @@
 import org.opencv.core.*;
 import org.opencv.imgproc.*;
 
+import java.util.concurrent.atomic.AtomicReference;
+
 /**
 * GripPipeline class.
 *
@@ -8,7 +10,7 @@ import org.opencv.imgproc.*;
 *
 * @author GRIP, modified by Eli Jelesko
 */
-public class GripPipeline {
+public class GripPipeline implements MaskPipeline {
 
 	//Outputs
 	private Mat cvGaussianblurOutput = new Mat();
@@ -18,100 +20,231 @@ public class GripPipeline {
 	private Mat cvDilateOutput = new Mat();
 	private Mat roiOuput = new Mat();
 	
-	// Values
-	private double[] hueThreshold = {0, 180};
-	private double[] satThreshold = {0, 255};
-	private double[] lumThreshold = {0, 255};
+	// Values, swapped as a whole so a frame never sees half of a change
+	private final AtomicReference<PipelineConfig> config;
 
-	private double[] redThreshold = {0, 255};
-	private double[] greenThreshold = {0, 255};
-	private double[] blueThreshold = {0, 255};
+	// Third buffer for split morphology steps
+	private Mat morphologyLineOutput = new Mat();
+	// Scratch for the color conversion when only part of the frame is thresholded
+	private Mat thresholdConversion = new Mat();
 
-	private boolean hsl = true;
-	private boolean roi = false;
+	private PipelineConfig plannedConfig;
+	private PipelinePlan plan;
 
-	private Point roiTopCorner;
-	private Point roiBottomCorner;
+	private static final int BLUR_KERNEL_SIZE = 1;
 
 	static {
 		System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
 	}
 
+	public GripPipeline() {
+		this(new AtomicReference<>(PipelineConfig.DEFAULT));
+	}
+
+	/**
+	 * Creates a pipeline that reads its values from a shared reference.
+	 * Pipelines sharing a reference see each other's changes, but each keeps its own outputs.
+	 * @param config the shared configuration
+	 */
+	public GripPipeline(AtomicReference<PipelineConfig> config) {
+		this.config = config;
+	}
+
 	/**
 	 * This is the primary method that runs the entire pipeline and updates the outputs.
 	 */
 	public void process(Mat source0) {
-		//System.out.println("Image processing");
+		process(source0, config.get());
+	}
+
+	/**
+	 * Runs the pipeline with the given values instead of the current ones.
+	 * @param source0 the image to process
+	 * @param config the values to use for the whole frame
+	 */
+	@Override
+	public void process(Mat source0, PipelineConfig config) {
+		process(source0, config, null);
+	}
 
-		// Step ROI (if enabled)
-		Mat cvGaussianblurSrc;
-		if (roi) {
-			Mat roiSource = source0;
-			ROI(roiSource);
-			cvGaussianblurSrc = roiOuput;
+	/**
+	 * Runs the pipeline on several frames packed into one image, see {@link MosaicProcessor}.
+	 * @param source0 the image to process
+	 * @param config the values to use for the whole image
+	 * @param separators mask of the strips between the frames, or null for a single frame. The strips are
+	 *                   cleared before every morphology step and in the output, so no step reaches across them.
+	 */
+	void process(Mat source0, PipelineConfig config, Mat separators) {
+		//System.out.println("Image processing");
+		PipelinePlan plan = plan(config);
+		Mat thresholdOutput = config.hsl ? hslThresholdOutput : rgbThresholdOutput;
+
+		if (!plan.threshold) {
+			// Every pixel passes, nothing to compute
+			thresholdOutput.create(source0.rows(), source0.cols(), CvType.CV_8UC1);
+			thresholdOutput.setTo(new Scalar(255));
+		}else if (plan.roiAfterThreshold) {
+			// Step Threshold inside ROI0:
+			thresholdOutput.create(source0.rows(), source0.cols(), CvType.CV_8UC1);
+			thresholdOutput.setTo(new Scalar(plan.outsideValue));
+			Rect roiRect = roiRect(config, source0.cols(), source0.rows());
+			if (roiRect != null) {
+				threshold(source0.submat(roiRect), config, thresholdOutput.submat(roiRect));
+			}
 		}else {
-			cvGaussianblurSrc = source0;
+			// Step ROI (if enabled)
+			Mat cvGaussianblurSrc;
+			if (plan.roi) {
+				Mat roiSource = source0;
+				ROI(roiSource, config.roiTopCorner(), config.roiBottomCorner());
+				cvGaussianblurSrc = roiOuput;
+			}else {
+				cvGaussianblurSrc = source0;
+			}
+
+			// Step CV_GaussianBlur0:
+			Mat thresholdInput = cvGaussianblurSrc;
+			if (plan.blur) {
+				Size cvGaussianblurKsize = new Size(BLUR_KERNEL_SIZE, BLUR_KERNEL_SIZE);
+				double cvGaussianblurSigmax = 5.0;
+				double cvGaussianblurSigmay = 5.0;
+				int cvGaussianblurBordertype = Core.BORDER_DEFAULT;
+				cvGaussianblur(cvGaussianblurSrc, cvGaussianblurKsize, cvGaussianblurSigmax, cvGaussianblurSigmay, cvGaussianblurBordertype, cvGaussianblurOutput);
+				thresholdInput = cvGaussianblurOutput;
+			}
+
+			// Step HSL_Threshold0 or RGB_Threshold0:
+			threshold(thresholdInput, config, thresholdOutput);
 		}
 
-		// Step CV_GaussianBlur0:
-		Size cvGaussianblurKsize = new Size(1, 1);
-		double cvGaussianblurSigmax = 5.0;
-		double cvGaussianblurSigmay = 5.0;
-		int cvGaussianblurBordertype = Core.BORDER_DEFAULT;
-		cvGaussianblur(cvGaussianblurSrc, cvGaussianblurKsize, cvGaussianblurSigmax, cvGaussianblurSigmay, cvGaussianblurBordertype, cvGaussianblurOutput);
-
-		// Step HSL_Threshold0:
-
-		if (hsl) {
-			Mat hslThresholdInput = cvGaussianblurOutput;
-			double[] hslThresholdHue = hueThreshold;
-			double[] hslThresholdSaturation = satThreshold;
-			double[] hslThresholdLuminance = lumThreshold;
-			hslThreshold(hslThresholdInput, hslThresholdHue, hslThresholdSaturation, hslThresholdLuminance, hslThresholdOutput);
-		}else{
-			// Step RGB_Threshold0:
-			Mat rgbThresholdInput = cvGaussianblurOutput;
-			double[] rgbThresholdRed = redThreshold;
-			double[] rgbThresholdGreen = greenThreshold;
-			double[] rgbThresholdBlue = blueThreshold;
-			rgbThreshold(rgbThresholdInput, rgbThresholdRed, rgbThresholdGreen, rgbThresholdBlue, rgbThresholdOutput);
+		// Step Morphology0:
+		config.morphology.apply(thresholdOutput, cvDilateOutput, morphologyLineOutput, separators);
+
+	}
+
+	/**
+	 * Gets the plan for a configuration, reusing the last one while the configuration doesn't change.
+	 * A new plan is printed so runs show which stages were skipped.
+	 */
+	private PipelinePlan plan(PipelineConfig config) {
+		if (config != plannedConfig) {
+			PipelinePlan newPlan = PipelinePlan.of(config, BLUR_KERNEL_SIZE);
+			if (plan == null || !plan.toString().equals(newPlan.toString())) {
+				System.out.println("Pipeline plan: " + newPlan);
+			}
+			plan = newPlan;
+			plannedConfig = config;
 		}
-		// Step CV_erode0:
-		Mat cvErodeSrc;
-		if (hsl){
-			cvErodeSrc = hslThresholdOutput;
+		return plan;
+	}
+
+	/**
+	 * Getter for the plan the last frame was processed with
+	 * @return the plan, or null if nothing was processed yet
+	 */
+	public PipelinePlan lastPlan() {
+		return plan;
+	}
+
+	/**
+	 * Runs the threshold of the configured mode.
+	 * @param input BGR image.
+	 * @param config the bounds and mode.
+	 * @param out binary output, may be a submat of a preallocated mask.
+	 */
+	private void threshold(Mat input, PipelineConfig config, Mat out) {
+		if (config.hsl) {
+			double[] hslThresholdHue = {config.hueLow, config.hueHigh};
+			double[] hslThresholdSaturation = {config.satLow, config.satHigh};
+			double[] hslThresholdLuminance = {config.lumLow, config.lumHigh};
+			hslThreshold(input, hslThresholdHue, hslThresholdSaturation, hslThresholdLuminance, out);
 		}else{
-			cvErodeSrc = rgbThresholdOutput;
+			double[] rgbThresholdRed = {config.redLow, config.redHigh};
+			double[] rgbThresholdGreen = {config.greenLow, config.greenHigh};
+			double[] rgbThresholdBlue = {config.blueLow, config.blueHigh};
+			rgbThreshold(input, rgbThresholdRed, rgbThresholdGreen, rgbThresholdBlue, out);
 		}
-		Mat cvErodeKernel = new Mat();
-		Point cvErodeAnchor = new Point(-1, -1);
-		double cvErodeIterations = 1.0;
-		int cvErodeBordertype = Core.BORDER_CONSTANT;
-		Scalar cvErodeBordervalue = new Scalar(-1);
-		cvErode(cvErodeSrc, cvErodeKernel, cvErodeAnchor, cvErodeIterations, cvErodeBordertype, cvErodeBordervalue, cvErodeOutput);
+	}
 
-		// Step CV_dilate0:
-		Mat cvDilateSrc = cvErodeOutput;
-		Mat cvDilateKernel = new Mat();
-		Point cvDilateAnchor = new Point(-1, -1);
-		double cvDilateIterations = 1.0;
-		int cvDilateBordertype = Core.BORDER_CONSTANT;
-		Scalar cvDilateBordervalue = new Scalar(-1);
-		cvDilate(cvDilateSrc, cvDilateKernel, cvDilateAnchor, cvDilateIterations, cvDilateBordertype, cvDilateBordervalue, cvDilateOutput);
+	/**
+	 * The pixels covered by the filled ROI rectangle, clipped to the image.
+	 * @return the rectangle, or null if the ROI is outside the image
+	 */
+	static Rect roiRect(PipelineConfig config, int cols, int rows) {
+		int x0 = Math.max(0, (int)Math.min(config.roiTopX, config.roiBottomX));
+		int y0 = Math.max(0, (int)Math.min(config.roiTopY, config.roiBottomY));
+		int x1 = Math.min(cols - 1, (int)Math.max(config.roiTopX, config.roiBottomX));
+		int y1 = Math.min(rows - 1, (int)Math.max(config.roiTopY, config.roiBottomY));
+		if (x1 < x0 || y1 < y0) {
+			return null;
+		}
+		return new Rect(x0, y0, x1 - x0 + 1, y1 - y0 + 1);
+	}
 
+	/**
+	 * Sets everything outside the ROI to 0, in place. Does nothing without a ROI.
+	 * @param image the image to clear.
+	 * @param config the values with the ROI.
+	 */
+	static void clearOutsideROI(Mat image, PipelineConfig config) {
+		if (!config.roi) {
+			return;
+		}
+		Scalar black = Scalar.all(0);
+		Rect rect = roiRect(config, image.cols(), image.rows());
+		if (rect == null) {
+			image.setTo(black);
+			return;
+		}
+		image.rowRange(0, rect.y).setTo(black);
+		image.rowRange(rect.y + rect.height, image.rows()).setTo(black);
+		image.submat(rect.y, rect.y + rect.height, 0, rect.x).setTo(black);
+		image.submat(rect.y, rect.y + rect.height, rect.x + rect.width, image.cols()).setTo(black);
 	}
 
 	public void switchThresholdModes(){
-		hsl = !hsl;
+		config.updateAndGet(c -> c.withHsl(!c.hsl));
 	}
 
 	public void enableROI(Point topCorner, Point bottomCorner) {
-		roiTopCorner = topCorner;
-		roiBottomCorner = bottomCorner;
-		roi = true;
+		config.updateAndGet(c -> c.withROI(topCorner, bottomCorner));
 	}
 	public void disbleROI() {
-		roi = false;
+		config.updateAndGet(PipelineConfig::withoutROI);
+	}
+
+	/**
+	 * Getter for the current values
+	 * @return the snapshot the next frame will be processed with
+	 */
+	public PipelineConfig config() {
+		return config.get();
+	}
+
+	/**
+	 * Replaces all values at once
+	 * @param config the new values
+	 */
+	public void setConfig(PipelineConfig config) {
+		this.config.set(config);
+	}
+
+	/**
+	 * The reference the values are read from, for sharing them with other pipelines
+	 * @return the shared configuration
+	 */
+	public AtomicReference<PipelineConfig> configReference() {
+		return config;
+	}
+
+	/**
+	 * How far away an input pixel can still change an output pixel.
+	 * A tile needs a halo this wide around it for its output to match processing the whole image.
+	 * @param config the values the tile will be processed with
+	 * @return the radius in pixels
+	 */
+	public static int haloRadius(PipelineConfig config) {
+		return BLUR_KERNEL_SIZE / 2 + config.morphology.radius();
 	}
 
 	/**
@@ -119,8 +252,7 @@ public class GripPipeline {
 	 * @param hueThreshold double array of length 2 with the threshold bounds
 	 */
 	public void setHueThreshold(float[] hueThreshold){
-		this.hueThreshold[0] = (double)hueThreshold[0];
-		this.hueThreshold[1] = (double)hueThreshold[1];
+		config.updateAndGet(c -> c.withHue(hueThreshold[0], hueThreshold[1]));
 	}
 
 	/**
@@ -128,8 +260,7 @@ public class GripPipeline {
 	 * @param satThreshold double array of length 2 with the threshold bounds
 	 */
 	public void setSatThreshold(float[] satThreshold){
-		this.satThreshold[0] = (double)satThreshold[0];
-		this.satThreshold[1] = (double)satThreshold[1];
+		config.updateAndGet(c -> c.withSat(satThreshold[0], satThreshold[1]));
 	}
 
 	/**
@@ -137,8 +268,7 @@ public class GripPipeline {
 	 * @param lumThreshold double array of length 2 with the threshold bounds
 	 */
 	public void setLumThreshold(float[] lumThreshold){
-		this.lumThreshold[0] = (double)lumThreshold[0];
-		this.lumThreshold[1] = (double)lumThreshold[1];
+		config.updateAndGet(c -> c.withLum(lumThreshold[0], lumThreshold[1]));
 	}
 
 	/**
@@ -146,8 +276,7 @@ public class GripPipeline {
 	 * @param redThreshold double array of length 2 with the threshold bounds
 	 */
 	public void setRedThreshold(float[] redThreshold){
-		this.redThreshold[0] = redThreshold[0];
-		this.redThreshold[1] = redThreshold[1];
+		config.updateAndGet(c -> c.withRed(redThreshold[0], redThreshold[1]));
 	}
 
 	/**
@@ -155,8 +284,7 @@ public class GripPipeline {
 	 * @param greenThreshold double array of length 2 with the threshold bounds
 	 */
 	public void setGreenThreshold(float[] greenThreshold){
-		this.greenThreshold[0] = greenThreshold[0];
-		this.greenThreshold[1] = greenThreshold[1];
+		config.updateAndGet(c -> c.withGreen(greenThreshold[0], greenThreshold[1]));
 	}
 
 	/**
@@ -164,14 +292,14 @@ public class GripPipeline {
 	 * @param blueThreshold double array of length 2 with the threshold bounds
 	 */
 	public void setBlueThreshold(float[] blueThreshold){
-		this.blueThreshold[0] = blueThreshold[0];
-		this.blueThreshold[1] = blueThreshold[1];
+		config.updateAndGet(c -> c.withBlue(blueThreshold[0], blueThreshold[1]));
 	}
 
 
 
 	/**
 	 * This method is a generated getter for the output of a CV_GaussianBlur.
+	 * Not updated while the plan skips the blur.
 	 * @return Mat output from CV_GaussianBlur.
 	 */
 	public Mat cvGaussianblurOutput() {
@@ -196,6 +324,7 @@ public class GripPipeline {
 
 	/**
 	 * This method is a generated getter for the output of a CV_erode.
+	 * Left empty, the morphology runs in place in the dilate output.
 	 * @return Mat output from CV_erode.
 	 */
 	public Mat cvErodeOutput() {
@@ -204,6 +333,7 @@ public class GripPipeline {
 
 	/**
 	 * This method is a generated getter for the output of a CV_dilate.
+	 * This is the final mask, the output of the whole morphology.
 	 * @return Mat output from CV_dilate.
 	 */
 	public Mat cvDilateOutput() {
@@ -212,10 +342,20 @@ public class GripPipeline {
 
 	public Mat roiOutput() {return roiOuput;}
 
+	/**
+	 * The final mask, same as {@link #cvDilateOutput()}
+	 * @return Mat output of the whole pipeline.
+	 */
+	@Override
+	public Mat output() {
+		return cvDilateOutput;
+	}
+
 	public Mat roiPreview(Mat input) {
-		if (roi) {
+		PipelineConfig config = this.config.get();
+		if (config.roi) {
 			//ROI(input, roiTopCorner, roiBottomCorner);
-			Imgproc.rectangle(input, roiTopCorner, roiBottomCorner, new Scalar(255, 0, 0), 2);
+			Imgproc.rectangle(input, config.roiTopCorner(), config.roiBottomCorner(), new Scalar(255, 0, 0), 2);
 		}
 		return input;
 	}
@@ -257,8 +397,9 @@ public class GripPipeline {
 	 */
 	private void hslThreshold(Mat input, double[] hue, double[] sat, double[] lum,
 		Mat out) {
-		Imgproc.cvtColor(input, out, Imgproc.COLOR_BGR2HLS);
-		Core.inRange(out, new Scalar(hue[0], lum[0], sat[0]),
+		// Converted in a scratch buffer so out can be a 1 channel submat
+		Imgproc.cvtColor(input, thresholdConversion, Imgproc.COLOR_BGR2HLS);
+		Core.inRange(thresholdConversion, new Scalar(hue[0], lum[0], sat[0]),
 			new Scalar(hue[1], lum[1], sat[1]), out);
 	}
 
@@ -333,16 +474,9 @@ public class GripPipeline {
 	 */
 	private void rgbThreshold(Mat input, double[] red, double[] green, double[] blue,
 							  Mat out) {
-		Imgproc.cvtColor(input, out, Imgproc.COLOR_BGR2RGB);
-		Core.inRange(out, new Scalar(red[0], green[0], blue[0]),
-				new Scalar(red[1], green[1], blue[1]), out);
-	}
-
-	private void ROI(Mat input){
-		if (roiTopCorner != null && roiBottomCorner != null) {
-			System.out.println("ROI setup");
-			ROI(input, roiTopCorner, roiBottomCorner);
-		}
+		// The input is BGR, swapping the bounds saves converting the whole image
+		Core.inRange(input, new Scalar(blue[0], green[0], red[0]),
+				new Scalar(blue[1], green[1], red[1]), out);
 	}
 
 	private void ROI(Mat input, Point topCorner, Point bottomCorner){
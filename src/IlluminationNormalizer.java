@@ -0,0 +1,149 @@
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * IlluminationNormalizer class.
+ *
+ * <p>Corrects lighting that drifts over a long run, so the bounds picked on the sample image keep matching.
+ * Each frame gets one gain per channel that brings its median color back to the median color of the reference:
+ * <pre>
+ *   gain[c] = reference[c] / median[c]
+ * </pre>
+ * which corrects both the brightness and the white balance. A median instead of a mean, so the front
+ * growing over the run doesn't count as a change in lighting: it only moves the median once it covers
+ * half of the frame, while it moves the mean from the first frame on. The medians are taken from a
+ * {@value #SAMPLE_WIDTH}x{@value #SAMPLE_HEIGHT} nearest neighbour sample of the ROI when there is one, for
+ * the reference as well as every frame: a Bayer {@link RawFrameFile} is only demosaiced inside the ROI, and
+ * the black around it would otherwise pull every frame's median down. The gains are
+ * applied with a 256 entry lookup table per channel, so the only per pixel work is one table lookup.
+ *
+ * <p>Gains are limited to between 1/{@value #MAX_GAIN} and {@value #MAX_GAIN}, a frame that is nearly
+ * black or blown out is left mostly alone instead of being stretched. Not thread safe.
+ */
+public class IlluminationNormalizer {
+
+    public static final int SAMPLE_WIDTH = 64;
+    public static final int SAMPLE_HEIGHT = 48;
+    public static final double MAX_GAIN = 2;
+
+    private final double[] reference;
+    private final double[] gains = {1, 1, 1};
+    private final Mat sample = new Mat();
+    private final byte[] samplePixels = new byte[SAMPLE_WIDTH * SAMPLE_HEIGHT * 3];
+    private final Mat lut = new Mat(1, 256, CvType.CV_8UC3);
+    private final byte[] table = new byte[256 * 3];
+
+    /**
+     * @param reference median blue, green and red of the reference, see {@link #measure(Mat)}
+     */
+    public IlluminationNormalizer(double[] reference) {
+        if (reference.length != 3) {
+            throw new IllegalArgumentException("Expected a blue, green and red mean but got " + reference.length + " values");
+        }
+        this.reference = reference.clone();
+    }
+
+    /**
+     * Measures the median color of an image from a sample of its pixels
+     * @param image BGR image
+     * @return median blue, green and red
+     */
+    public static double[] measure(Mat image) {
+        return measure(image, null, null);
+    }
+
+    /**
+     * Measures the median color inside the ROI of an image from a sample of its pixels
+     * @param image BGR image
+     * @param config the values, only the ROI is used, or null for the whole image
+     * @param roiSpace size of the images the ROI was picked on
+     * @return median blue, green and red
+     */
+    public static double[] measure(Mat image, PipelineConfig config, Size roiSpace) {
+        Mat sample = new Mat();
+        double[] medians = measure(image, config, roiSpace, sample, new byte[SAMPLE_WIDTH * SAMPLE_HEIGHT * 3]);
+        sample.release();
+        return medians;
+    }
+
+    private static double[] measure(Mat image, PipelineConfig config, Size roiSpace, Mat sample, byte[] pixels) {
+        Mat area = image;
+        if (config != null && config.roi) {
+            PipelineConfig scaled = config.transformROI(image.cols() / roiSpace.width, image.rows() / roiSpace.height, 0, 0);
+            Rect rect = GripPipeline.roiRect(scaled, image.cols(), image.rows());
+            if (rect != null) {
+                area = image.submat(rect);
+            }
+        }
+        // Nearest neighbour only reads the pixels it keeps
+        Imgproc.resize(area, sample, new Size(SAMPLE_WIDTH, SAMPLE_HEIGHT), 0, 0, Imgproc.INTER_NEAREST);
+        if (area != image) {
+            area.release();
+        }
+        sample.get(0, 0, pixels);
+        int[][] histograms = new int[3][256];
+        for (int i = 0; i < pixels.length; i++) {
+            histograms[i % 3][pixels[i] & 0xFF]++;
+        }
+        double[] medians = new double[3];
+        for (int c = 0; c < 3; c++) {
+            medians[c] = median(histograms[c], pixels.length / 3);
+        }
+        return medians;
+    }
+
+    private static int median(int[] histogram, int count) {
+        int seen = 0;
+        for (int v = 0; v < 256; v++) {
+            seen += histogram[v];
+            if (seen * 2 >= count) {
+                return v;
+            }
+        }
+        return 255;
+    }
+
+    /**
+     * Corrects a frame towards the reference
+     * @param src BGR frame
+     * @param dst corrected frame, may be src
+     */
+    public void apply(Mat src, Mat dst) {
+        apply(src, dst, null, null);
+    }
+
+    /**
+     * Corrects a frame towards a reference measured inside the same ROI
+     * @param src BGR frame
+     * @param dst corrected frame, may be src
+     * @param config the values, only the ROI is used, or null for the whole frame
+     * @param roiSpace size of the frames the ROI was picked on
+     */
+    public void apply(Mat src, Mat dst, PipelineConfig config, Size roiSpace) {
+        double[] medians = measure(src, config, roiSpace, sample, samplePixels);
+        for (int c = 0; c < 3; c++) {
+            double gain = medians[c] < 1 ? 1 : reference[c] / medians[c];
+            gains[c] = Math.max(1 / MAX_GAIN, Math.min(MAX_GAIN, gain));
+        }
+
+        // Entries are interleaved B, G, R like the pixels
+        for (int v = 0; v < 256; v++) {
+            for (int c = 0; c < 3; c++) {
+                table[v * 3 + c] = (byte)Math.min(255, (int)Math.round(v * gains[c]));
+            }
+        }
+        lut.put(0, 0, table);
+        Core.LUT(src, lut, dst);
+    }
+
+    /**
+     * @return blue, green and red gain of the last frame
+     */
+    public double[] gains() {
+        return gains.clone();
+    }
+}
@@ -0,0 +1,212 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.Consumer;
+
+/**
+ * ImageScanner class.
+ *
+ * <p>Lists the images of a folder in natural order, so img_2 comes before img_10 and frame numbers
+ * match the order the images were taken in. Entries are streamed from the folder and only the names of
+ * images are kept, judged by extension without touching the files, so a folder with a hundred thousand
+ * frames costs a list of names instead of a {@code File} per entry.
+ *
+ * <p>{@link #start} scans on a background thread and hands every image to a callback as it is found, in
+ * the order the file system returns them, e.g. to start decoding the first frames. The final order is
+ * only known once the whole folder is listed, see {@link #awaitFiles()}, so frame numbers, and anything
+ * that depends on them like the analysis, wait for the end of the listing. Only decoding can start early.
+ */
+public class ImageScanner {
+
+    /**
+     * Compares runs of digits by their value and everything else ignoring case, e.g.
+     * {@code img_2.jpg < img_10.jpg < IMG_11.jpg}. Names that only differ in case or leading zeros
+     * are still ordered, so the order is the same on every run.
+     */
+    public static final Comparator<String> NATURAL_ORDER = ImageScanner::compareNatural;
+
+    private final File directory;
+    private final Consumer<File> onImage;
+    private final List<String> names = new ArrayList<>();
+    private final List<String> rawNames = new ArrayList<>();
+    private final CountDownLatch finished = new CountDownLatch(1);
+    private volatile int found;
+    private volatile File[] files;
+    private volatile File[] rawFiles;
+    private volatile IOException error;
+
+    private ImageScanner(File directory, Consumer<File> onImage) {
+        this.directory = directory;
+        this.onImage = onImage;
+    }
+
+    /**
+     * Starts scanning a folder on a background thread
+     * @param directory the folder
+     * @param onImage called on the scanning thread with each image as it is found, may be null
+     * @return the running scan
+     */
+    public static ImageScanner start(File directory, Consumer<File> onImage) {
+        ImageScanner scanner = new ImageScanner(directory, onImage);
+        Thread thread = new Thread(scanner::scan, "image-scanner");
+        thread.setDaemon(true);
+        thread.start();
+        return scanner;
+    }
+
+    /**
+     * Lists the images of a folder on the calling thread
+     * @param directory the folder
+     * @return the images in natural order
+     * @throws IOException if the folder can't be read
+     */
+    public static File[] list(File directory) throws IOException {
+        ImageScanner scanner = scanNow(directory);
+        if (scanner.error != null) {
+            throw scanner.error;
+        }
+        return scanner.files;
+    }
+
+    /**
+     * Scans a folder on the calling thread, for its raw frame files as well as its images
+     * @param directory the folder
+     * @return the finished scan
+     */
+    public static ImageScanner scanNow(File directory) {
+        ImageScanner scanner = new ImageScanner(directory, null);
+        scanner.scan();
+        return scanner;
+    }
+
+    private void scan() {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory.toPath())) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                if (FrameCache.hasImageExtension(name)) {
+                    names.add(name);
+                    found++;
+                    if (onImage != null) {
+                        onImage.accept(path.toFile());
+                    }
+                } else if (name.toLowerCase().endsWith(RawFrameFile.EXTENSION)) {
+                    rawNames.add(name);
+                }
+            }
+            files = sorted(names);
+            rawFiles = sorted(rawNames);
+        } catch (IOException e) {
+            error = e;
+            files = new File[0];
+            rawFiles = new File[0];
+        } finally {
+            finished.countDown();
+        }
+    }
+
+    private File[] sorted(List<String> list) {
+        list.sort(NATURAL_ORDER);
+        File[] sorted = new File[list.size()];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = new File(directory, list.get(i));
+        }
+        return sorted;
+    }
+
+    /**
+     * @return number of images found so far
+     */
+    public int found() {
+        return found;
+    }
+
+    public boolean isDone() {
+        return finished.getCount() == 0;
+    }
+
+    /**
+     * Waits for the scan to finish
+     * @return the images in natural order
+     * @throws IOException if the folder couldn't be read
+     */
+    public File[] awaitFiles() throws IOException, InterruptedException {
+        finished.await();
+        if (error != null) {
+            throw error;
+        }
+        return files;
+    }
+
+    /**
+     * @return the raw frame files of the folder in natural order, empty until the scan is done
+     */
+    public File[] rawFiles() {
+        return isDone() ? rawFiles : new File[0];
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    private static int compareNatural(String a, String b) {
+        int i = 0;
+        int j = 0;
+        // Leading zeros only decide between names that are otherwise the same
+        int zeros = 0;
+        while (i < a.length() && j < b.length()) {
+            char ca = a.charAt(i);
+            char cb = b.charAt(j);
+            if (Character.isDigit(ca) && Character.isDigit(cb)) {
+                // Compare the runs of digits by value: skip leading zeros, then the longer run is larger
+                int startA = i;
+                int startB = j;
+                while (i < a.length() && a.charAt(i) == '0') {
+                    i++;
+                }
+                while (j < b.length() && b.charAt(j) == '0') {
+                    j++;
+                }
+                int digitsA = i;
+                int digitsB = j;
+                while (i < a.length() && Character.isDigit(a.charAt(i))) {
+                    i++;
+                }
+                while (j < b.length() && Character.isDigit(b.charAt(j))) {
+                    j++;
+                }
+                int lengthA = i - digitsA;
+                int lengthB = j - digitsB;
+                if (lengthA != lengthB) {
+                    return lengthA - lengthB;
+                }
+                for (int k = 0; k < lengthA; k++) {
+                    int difference = a.charAt(digitsA + k) - b.charAt(digitsB + k);
+                    if (difference != 0) {
+                        return difference;
+                    }
+                }
+                if (zeros == 0) {
+                    zeros = (digitsA - startA) - (digitsB - startB);
+                }
+            } else {
+                int difference = Character.toLowerCase(ca) - Character.toLowerCase(cb);
+                if (difference != 0) {
+                    return difference;
+                }
+                i++;
+                j++;
+            }
+        }
+        int remaining = (a.length() - i) - (b.length() - j);
+        if (remaining != 0) {
+            return remaining;
+        }
+        return zeros != 0 ? zeros : a.compareTo(b);
+    }
+}
@@ -0,0 +1,341 @@
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+import processing.data.JSONArray;
+import processing.data.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * JobQueue class.
+ *
+ * <p>Analyzes many experiment folders, each with its own values, on one pool of workers without the GUI.
+ * A queue file lists the experiments:
+ * <pre>
+ *   {"jobs": [{"name": "A", "folder": "D:/runs/A", "config": {...}, "width": 780, "height": 800,
+ *              "interval": 30, "priority": 2, "output": "D:/runs/results"}, ...]}
+ * </pre>
+ * The config is read by {@link PipelineConfig#fromJSON(JSONObject)}, the analysis saves one as
+ * {@code Results/job_<time>.json} that can be copied into the list. Width and height are the size the
+ * ROI was picked at; they resize the images first like the analysis does and are optional. Interval is
+ * the seconds between images (default 1), priority a positive weight (default 1), output the folder for
+ * the results (default {@code Results}). The results are named after the experiment, so two experiments
+ * with the same name and output can't be queued together.
+ *
+ * <p>Workers take one image at a time from the experiment that is furthest behind its share. Each
+ * experiment has a pass that grows by 1 / priority for every image it is given, and the lowest pass
+ * goes next, so an experiment with priority 2 gets twice the images of one with priority 1 while both
+ * are running. Experiments added later start at the current pass, so a small urgent one starts right
+ * away instead of waiting behind a huge one, and can't claim the whole pool to catch up either.
+ *
+ * <p>Every experiment has its own {@link BatchJob} for progress and can be paused or cancelled through it.
+ * Its results go into a {@link ResultStore} and are exported like the GUI analysis when it is done.
+ */
+public class JobQueue {
+
+    private final List<Experiment> experiments = new ArrayList<>();
+    // Result stores of every experiment submitted so far, so no two write the same files
+    private final Set<File> resultStores = new HashSet<>();
+    private final Thread[] workers;
+    // Pass of the experiment that went last, where new experiments start
+    private double currentPass;
+    private boolean shutdown;
+
+    /**
+     * One folder to analyze with its own values
+     */
+    public static final class Experiment {
+        final String name;
+        final File[] files;
+        final PipelineConfig config;
+        final Size size;
+        final double interval;
+        final double priority;
+        final File output;
+        final BatchJob job;
+
+        // Guarded by the queue
+        private ResultStore store;
+        private int next;
+        private int inFlight;
+        private double pass;
+        private boolean completing;
+
+        /**
+         * @param name name of the experiment, used for the result files
+         * @param folder folder with the images, analyzed in natural filename order
+         * @param config the values
+         * @param size size to resize the images to, or null for full resolution
+         * @param interval seconds between images
+         * @param priority weight of the experiment, more than 0
+         * @param output folder for the results
+         */
+        public Experiment(String name, File folder, PipelineConfig config, Size size, double interval, double priority, File output) {
+            if (priority <= 0) {
+                throw new IllegalArgumentException("Priority must be more than 0: " + priority);
+            }
+            try {
+                this.files = ImageScanner.list(folder);
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Unable to read the folder " + folder + ": " + e.getMessage());
+            }
+            this.name = name;
+            this.config = config;
+            this.size = size;
+            this.interval = interval;
+            this.priority = priority;
+            this.output = output;
+            this.job = new BatchJob(name, files.length);
+        }
+
+        /**
+         * Reads an experiment of a queue file
+         * @param json the experiment
+         * @return the experiment
+         * @throws IllegalArgumentException if something is missing or the folder can't be read
+         */
+        public static Experiment fromJSON(JSONObject json) {
+            if (!json.hasKey("folder")) {
+                throw new IllegalArgumentException("Experiment needs a \"folder\"");
+            }
+            File folder = new File(json.getString("folder"));
+            String name = json.getString("name", folder.getName());
+            PipelineConfig config = json.hasKey("config") ? PipelineConfig.fromJSON(json.getJSONObject("config")) : PipelineConfig.DEFAULT;
+            Size size = json.hasKey("width") && json.hasKey("height") ? new Size(json.getInt("width"), json.getInt("height")) : null;
+            return new Experiment(name, folder, config, size, json.getDouble("interval", 1), json.getDouble("priority", 1),
+                    new File(json.getString("output", "Results")));
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public BatchJob getJob() {
+            return job;
+        }
+    }
+
+    /**
+     * Reads the experiments of a queue file. An experiment that can't be read, e.g. because its folder
+     * is missing, is reported and left out, the others still run.
+     * @param file the queue file
+     * @return the experiments that could be read, in the order they are listed
+     * @throws IOException if the file can't be read
+     */
+    public static List<Experiment> load(File file) throws IOException {
+        JSONObject json;
+        try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+            json = new JSONObject(reader);
+        }
+        JSONArray jobs = json.getJSONArray("jobs");
+        List<Experiment> experiments = new ArrayList<>(jobs.size());
+        for (int i = 0; i < jobs.size(); i++) {
+            try {
+                experiments.add(Experiment.fromJSON(jobs.getJSONObject(i)));
+            } catch (RuntimeException e) {
+                System.out.println("Skipped experiment " + (i + 1) + " of " + file.getName() + ": " + e.getMessage());
+            }
+        }
+        return experiments;
+    }
+
+    /**
+     * Starts the workers, they wait for experiments
+     * @param workerCount number of images analyzed in parallel
+     */
+    public JobQueue(int workerCount) {
+        workers = new Thread[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            GripPipeline pipeline = new GripPipeline();
+            workers[i] = new Thread(() -> work(pipeline), "job-queue-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Adds an experiment, it starts on the next free worker
+     * @param experiment the experiment
+     * @throws IOException if its result store can't be created
+     * @throws IllegalArgumentException if an experiment submitted before writes to the same result files
+     */
+    public void submit(Experiment experiment) throws IOException {
+        File storeFile = resultFile(experiment, ".lrs").getAbsoluteFile();
+        synchronized (this) {
+            if (!resultStores.add(storeFile)) {
+                throw new IllegalArgumentException("Another experiment already saves its results to " + storeFile
+                        + ", give it a different name or output");
+            }
+        }
+        String[] filenames = new String[experiment.files.length];
+        for (int i = 0; i < filenames.length; i++) {
+            filenames[i] = experiment.files[i].getName();
+        }
+        ResultStore store;
+        try {
+            store = ResultStore.create(storeFile, filenames);
+        } catch (IOException e) {
+            synchronized (this) {
+                resultStores.remove(storeFile);
+            }
+            throw e;
+        }
+        synchronized (this) {
+            experiment.store = store;
+            experiment.pass = currentPass;
+            experiments.add(experiment);
+            notifyAll();
+        }
+        System.out.println("Queued " + experiment.name + ": " + experiment.files.length + " images, priority " + experiment.priority);
+    }
+
+    /**
+     * Waits until every experiment is done or cancelled
+     */
+    public synchronized void awaitIdle() throws InterruptedException {
+        while (!experiments.isEmpty()) {
+            wait();
+        }
+    }
+
+    /**
+     * Stops the workers once their current image is done, experiments left are not exported
+     */
+    public void shutdown() {
+        synchronized (this) {
+            shutdown = true;
+            notifyAll();
+        }
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+    }
+
+    private void work(GripPipeline pipeline) {
+        while (true) {
+            Experiment experiment;
+            int frame;
+            synchronized (this) {
+                try {
+                    experiment = nextExperiment();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (experiment == null) {
+                    return;
+                }
+                if (experiment.completing) {
+                    frame = -1;
+                } else {
+                    frame = experiment.next++;
+                    experiment.inFlight++;
+                    currentPass = experiment.pass;
+                    experiment.pass += 1 / experiment.priority;
+                }
+            }
+
+            if (frame < 0) {
+                complete(experiment);
+                continue;
+            }
+            try {
+                measure(experiment, frame, pipeline);
+            } catch (RuntimeException e) {
+                System.out.println(experiment.name + ": unable to analyze " + experiment.files[frame].getName() + ": " + e.getMessage());
+                // Exported as N/A and marked as failed, apart from the frames where nothing was detected
+                experiment.store.writeFailed(frame, frame, experiment.interval * frame);
+            }
+            experiment.job.frameDone();
+            synchronized (this) {
+                experiment.inFlight--;
+                // Whoever finds it done exports it
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Picks the experiment to work on, waiting while there is none. Call with the lock held.
+     * @return an experiment with an image to analyze, one that is done or cancelled with nothing left
+     *         in flight and now marked as completing, or null on shutdown
+     */
+    private Experiment nextExperiment() throws InterruptedException {
+        while (!shutdown) {
+            Experiment best = null;
+            for (Experiment experiment : experiments) {
+                if (experiment.completing) {
+                    continue;
+                }
+                BatchJob.State state = experiment.job.state();
+                boolean finished = experiment.next >= experiment.files.length || state == BatchJob.State.CANCELLING;
+                if (finished && experiment.inFlight == 0) {
+                    experiment.completing = true;
+                    return experiment;
+                }
+                if (!finished && state == BatchJob.State.RUNNING && (best == null || experiment.pass < best.pass)) {
+                    best = experiment;
+                }
+            }
+            if (best != null) {
+                return best;
+            }
+            // Paused experiments don't tell the queue when they resume
+            wait(200);
+        }
+        return null;
+    }
+
+    private void measure(Experiment experiment, int frame, GripPipeline pipeline) {
+        Mat image = Imgcodecs.imread(experiment.files[frame].getAbsolutePath());
+        if (image.empty()) {
+            throw new IllegalArgumentException("not an image");
+        }
+        if (experiment.size != null) {
+            Imgproc.resize(image, image, experiment.size);
+        }
+        pipeline.process(image, experiment.config);
+        Blob blob = BlobFinder.largest(pipeline.output());
+        image.release();
+
+        double elapsed = experiment.interval * frame;
+        if (blob != null) {
+            experiment.store.write(frame, frame, elapsed, blob.highest(), blob.lowest());
+        } else {
+            experiment.store.writeEmpty(frame, frame, elapsed);
+        }
+    }
+
+    private void complete(Experiment experiment) {
+        boolean cancelled = experiment.job.state() == BatchJob.State.CANCELLING;
+        try {
+            experiment.store.close();
+            try (ResultStoreReader reader = ResultStoreReader.open(experiment.store.getFile())) {
+                reader.exportText(resultFile(experiment, ".txt"));
+                reader.exportCsv(resultFile(experiment, ".csv"));
+            }
+        } catch (IOException e) {
+            System.out.println(experiment.name + ": unable to save the results: " + e.getMessage());
+        }
+        experiment.job.finish();
+        System.out.println((cancelled ? "Cancelled " : "Finished ") + experiment.name + ", " + experiment.job.status(", "));
+        synchronized (this) {
+            experiments.remove(experiment);
+            notifyAll();
+        }
+    }
+
+    private static File resultFile(Experiment experiment, String extension) {
+        String safeName = experiment.name.replaceAll("[^A-Za-z0-9._-]", "_");
+        return new File(experiment.output, "results_" + safeName + extension);
+    }
+}
@@ -2,20 +2,27 @@ import controlP5.*;
 import controlP5.Button;
 import controlP5.Range;
 import org.opencv.core.*;
-import org.opencv.imgcodecs.Imgcodecs;
 import org.opencv.imgproc.Imgproc;
 import processing.core.PApplet;
 import processing.core.PImage;
-import processing.data.Table;
-import processing.data.TableRow;
+import processing.data.JSONObject;
 
 import java.io.File;
-import java.io.PrintWriter;
+import java.io.IOException;
 import java.text.DateFormat;
-import java.text.DecimalFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.function.Supplier;
 
 /**
  * Main window class.
@@ -28,6 +35,8 @@ public class Main extends PApplet{
 
     private ControlP5 cp5;
     private GripPipeline imagePipeline;
+    // Produces the preview mask, the graph from --pipeline if given
+    private MaskPipeline previewPipeline;
     private Mat initialImage, roiImage;
     private PImage displayImage, originalDisplayImage, colorDropperImg;
     private final int RANGE_HEIGHT = 40;
@@ -35,11 +44,23 @@ public class Main extends PApplet{
     private int originalDisplayImageX, originalDisplayImageY, originalDisplayImageWidth, originalDisplayImageHeight;
     private int displayImageBoundaryX, displayImageBoundaryY, displayImageBoundaryWidth, displayImageBoundaryHeight;
     private int controlsX, controlsWidth, controlsHeight, controlsPadding, controlsStartY, controlsTextPadding;
-    private int percentDone = 0;
+    // Decoded frames shared by the GUI and the analysis
+    private static final long FRAME_CACHE_BYTES = 256L * 1024 * 1024;
+    private final FrameCache frameCache = new FrameCache(FRAME_CACHE_BYTES);
+    // Newest annotated frame from the analysis thread
+    private final FrameHandoff analysisFrames = new FrameHandoff();
+    // Current values on frames spread over the run, toggled with G while selecting values
+    private PreviewGrid previewGrid;
+    private boolean gridPreview;
+    private PImage gridImage;
     private boolean colorDropperEnbabled, hslVisited, rgbVisited, ROIEnabled, ROIDrawEnabled;
     private boolean topCornerSelected = false;
     private boolean bottomCornerSelected = false;
-    private boolean analysisDone = false;
+    // The running analysis, null until it starts
+    private volatile BatchJob analysisJob;
+    // Browses the thumbnails and results once the analysis is done
+    private volatile ResultScrubber scrubber;
+    private int scrubFrame;
     private String initalImageFilepath;
     private String allImagesFilepath;
     private String imgErrorMessage = "";
@@ -51,16 +72,67 @@ public class Main extends PApplet{
     private Button colorDropperButton;
     private Button confirmButton;
     private Button selectImagesButton;
+    private Button pauseButton, cancelButton;
     private Slider timeSlider;
+    private Slider scrubSlider;
 
     private File[] files;
+    // Lists the selected folder in the background, null once its images are in files
+    private ImageScanner imageScanner;
+    // Frames decoded while the folder is still being listed
+    private static final int PREFETCH_FRAMES = 32;
+    private final ExecutorService prefetcher = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "frame-prefetch");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Frames come from this file instead of the images when the folder has a raw frame file
+    private RawFrameFile rawFrames;
+
+    // Measure frames at full resolution in tiles instead of on the resized frame
+    private static boolean tiledMode = false;
+    // Find the blob on frames this many times smaller and refine its edges at full resolution, 0 for off
+    private static int coarseFactor = 0;
+    // Measure this many frames together in one mosaic, 0 for one frame at a time
+    private static int batchSize = 0;
+    // Measure every this many frames first and fill in the rest later, 0 to measure in order
+    private static int progressiveStride = 0;
+    // Positions a worker of a progressive analysis takes at a time, at least a batch
+    private static final int PROGRESSIVE_CHUNK = 16;
+    // Morphology from the command line, the default erode and dilate if not given
+    private static MorphologySpec morphology = MorphologySpec.DEFAULT;
+    // Pipeline loaded with --pipeline, null for the built in one
+    private static PipelineGraph pipelineGraph = null;
+    private static File pipelineFile = null;
+    // Worker processes to split the analysis over, 0 to analyze in this process
+    private static int shardCount = 0;
+    // Detect changes against a running background instead of thresholding colors
+    private static boolean backgroundMode = false;
+    private static double backgroundRate = BackgroundPipeline.DEFAULT_LEARNING_RATE;
+    private static double backgroundThreshold = BackgroundPipeline.DEFAULT_THRESHOLD;
+    // Measure every object of at least objectMinArea pixels instead of only the largest
+    private static boolean objectsMode = false;
+    private static int objectMinArea = BlobFinder.DEFAULT_MIN_AREA;
+    // Frames that look unchanged keep the last measurement, at most maxCarried in a row
+    private static boolean skipUnchanged = false;
+    private static double changeTolerance = ChangeDetector.DEFAULT_TOLERANCE;
+    private static int maxCarried = ChangeDetector.DEFAULT_MAX_CARRIED;
+    // Corrects each frame's lighting towards the sample image before thresholding
+    private static boolean normalizeMode = false;
+    // Saves the final mask of every frame for --remeasure, see MaskStore
+    private static boolean saveMasks = false;
+    // Saves the annotated frames, see AnnotatedWriter, null to only show them
+    private static String annotateSpec = null;
+    // Frame numbers the preview grid shows, null to spread them over the run
+    private static int[] gridFrames = null;
 
     private Point topCorner;
     private Point bottomCorner;
 
-    private PrintWriter textOutput;
-    private Table csvOutput;
-    private DecimalFormat df;
+    private ResultStore resultStore;
+    // Reads the results of a progressive analysis while it runs, for the rough curve
+    private volatile ResultStoreReader progressReader;
+    private volatile String progressNote;
 
     private enum Threshold {
         HSL, RGB
@@ -213,6 +285,34 @@ public class Main extends PApplet{
 
         selectImagesButton.getCaptionLabel().setSize(12);
 
+        pauseButton = cp5.addButton("pauseAnalysis")
+                .setBroadcast(false)
+                .setPosition(controlsX, 4*controlsTextPadding + 3*RANGE_HEIGHT)
+                .setSize(76, 30)
+                .setLabel("Pause")
+                .setVisible(false)
+                .setLock(true)
+                .setBroadcast(true);
+
+        scrubSlider = cp5.addSlider("scrubFrame")
+                .setBroadcast(false)
+                .setPosition(controlsX, 4*controlsTextPadding + 3*RANGE_HEIGHT)
+                .setSize(controlsWidth, RANGE_HEIGHT)
+                .setValue(0)
+                .setLabel("")
+                .setVisible(false)
+                .setLock(true)
+                .setBroadcast(true);
+
+        cancelButton = cp5.addButton("cancelAnalysis")
+                .setBroadcast(false)
+                .setPosition(controlsX + 90, 4*controlsTextPadding + 3*RANGE_HEIGHT)
+                .setSize(76, 30)
+                .setLabel("Cancel")
+                .setVisible(false)
+                .setLock(true)
+                .setBroadcast(true);
+
         // Initialize color dropper
         colorDropperEnbabled = false;
 
@@ -225,6 +325,14 @@ public class Main extends PApplet{
 
         // Setup pipeline
         imagePipeline = new GripPipeline();
+        imagePipeline.setConfig(imagePipeline.config().withMorphology(morphology));
+        System.out.println("Morphology plan: " + morphology.describePlan());
+        previewPipeline = imagePipeline;
+        if (pipelineGraph != null) {
+            CompiledGraph graph = pipelineGraph.compile();
+            System.out.println("Pipeline graph: " + graph.describe() + ", " + graph.bufferCount() + " buffers");
+            previewPipeline = graph;
+        }
 
         // Load inital image
         //initialImage = Imgcodecs.imread("res/images/image.JPG");
@@ -261,15 +369,7 @@ public class Main extends PApplet{
         // File writing
         Date date = new Date();
         DateFormat format = new SimpleDateFormat("yyyy_MM_dd_HH_mm");
-        df = new DecimalFormat("#.###");
         time = format.format(date);
-
-        textOutput = createWriter("Results\\results_" + time + ".txt");
-        csvOutput = new Table();
-        csvOutput.addColumn("Filename");
-        csvOutput.addColumn("Elapsed Time (sec)");
-        csvOutput.addColumn("Highest Pixel");
-        csvOutput.addColumn("Lowest Pixel");
     }
 
     @Override
@@ -319,8 +419,20 @@ public class Main extends PApplet{
 
                 break;
             case SELECT_VALUES:
-                image(displayImage, 0.0f, 0.0f);
+                if (gridPreview) {
+                    Mat grid = previewGrid.takeGrid();
+                    if (grid != null) {
+                        gridImage = toPImage(grid);
+                        grid.release();
+                    }
+                }
+                image(gridPreview && gridImage != null ? gridImage : displayImage, 0.0f, 0.0f);
                 image(originalDisplayImage, originalDisplayImageX, originalDisplayImageY);
+                if (backgroundMode) {
+                    // The analysis finds changes against the earlier frames, the preview only shows the color ranges
+                    fill(255, 0, 0);
+                    text("Threshold preview only: --background ignores the color ranges, it uses the ROI and morphology", 10, 20);
+                }
 
                 // Draw range labels
                 fill(0);
@@ -359,8 +471,17 @@ public class Main extends PApplet{
 
                 break;
             case LOAD_IMAGES:
+                if (imageScanner != null && imageScanner.isDone()) {
+                    scanFinished();
+                }
                 // If we have images
-                if (files != null) {
+                if (imageScanner != null) {
+                    noFill();
+                    rect(displayImageBoundaryX, displayImageBoundaryY, displayImageBoundaryWidth, displayImageBoundaryHeight);
+                    fill(0);
+                    String scanning = "Listing images... " + imageScanner.found() + " found";
+                    text(scanning, (displayImageBoundaryWidth - textWidth(scanning)) / 2, displayImageBoundaryHeight / 2);
+                }else if (files != null) {
                     try {
                         image(displayImage, 0.0f, 0.0f);
                         // For debug purposes
@@ -411,18 +532,41 @@ public class Main extends PApplet{
 
                 break;
             case RUN_ANALYSIS:
+                // Only convert the frame that is actually drawn
+                Mat latestFrame = analysisFrames.take();
+                if (latestFrame != null) {
+                    displayImage = toPImage(latestFrame);
+                    latestFrame.release();
+                }
                 image(displayImage, 0.0f, 0.0f);
 
-                if (!analysisDone) {
+                BatchJob job = analysisJob;
+                if (job == null || !job.isDone()) {
                     fill(0);
                     textSize(24);
                     // Directions
-                    text("Analyzing images\n" + percentDone + "% done", controlsX, controlsTextPadding);
+                    text("Analyzing images", controlsX, controlsTextPadding);
+                    if (job != null) {
+                        textSize(16);
+                        text(job.status("\n"), controlsX, 5*controlsTextPadding + 3*RANGE_HEIGHT);
+                    }
+                    ResultStoreReader progress = progressReader;
+                    if (progress != null) {
+                        drawProgressCurve(progress);
+                    }
+                }else if (scrubber != null) {
+                    drawScrubber(job);
                 }else {
+                    pauseButton.setVisible(false);
+                    cancelButton.setVisible(false);
                     fill(0);
                     textSize(24);
                     // Results
-                    String doneMessage =
+                    String doneMessage = job.state() == BatchJob.State.CANCELLED ?
+                            "Analysis cancelled\n" +
+                            (progressiveStride > 0 ? "Results of the " + job.completed() + " images measured\n" : "Results of the first " + job.completed() + " images\n") +
+                            "are in the Results folder\n" +
+                            "at project root" :
                             "Analysis finished sucessfully\n" +
                             "Please close the program\n" +
                             "Results are in the Results folder\n" +
@@ -438,13 +582,156 @@ public class Main extends PApplet{
         }
     }
 
+    /**
+     * Draws the frames of a progressive analysis measured so far, highest pixel in blue and lowest in red.
+     * Rows go down like in the image, frames from left to right.
+     * @param progress reader of the running analysis' results
+     */
+    private void drawProgressCurve(ResultStoreReader progress) {
+        int plotX = controlsX;
+        int plotY = height - 240;
+        int plotWidth = controlsWidth;
+        int plotHeight = 200;
+        String note = progressNote;
+        if (note != null) {
+            fill(0);
+            textSize(16);
+            text(note, plotX, plotY - 10);
+        }
+        noFill();
+        stroke(0);
+        rect(plotX, plotY, plotWidth, plotHeight);
+
+        strokeWeight(2);
+        int frames = progress.size();
+        for (int column = 0; column < plotWidth; column++) {
+            // First measured frame of the frames this column covers
+            int end = (int)((long)(column + 1) * frames / plotWidth);
+            for (int i = (int)((long)column * frames / plotWidth); i < end; i++) {
+                if (progress.isDetected(i)) {
+                    stroke(0, 0, 255);
+                    point(plotX + column, plotY + (float)progress.highest(i) * plotHeight / displayImageBoundaryHeight);
+                    stroke(255, 0, 0);
+                    point(plotX + column, plotY + (float)progress.lowest(i) * plotHeight / displayImageBoundaryHeight);
+                    break;
+                }
+            }
+        }
+        strokeWeight(1);
+        stroke(0);
+    }
+
+    /**
+     * Draws the selected frame's thumbnail over the display area, its results and a filmstrip of the frames around it
+     * @param job the finished analysis
+     */
+    private void drawScrubber(BatchJob job) {
+        if (!scrubSlider.isVisible()) {
+            pauseButton.setVisible(false);
+            cancelButton.setVisible(false);
+            scrubSlider.setRange(0, Math.max(0, scrubber.size() - 1));
+            scrubSlider.setVisible(true);
+            scrubSlider.setLock(false);
+        }
+
+        PImage preview = scrubber.thumbnail(scrubFrame, 0);
+        if (preview != null) {
+            image(preview, 0.0f, 0.0f, displayImageBoundaryWidth, displayImageBoundaryHeight);
+        }
+
+        fill(0);
+        textSize(24);
+        text(job.state() == BatchJob.State.CANCELLED ? "Analysis cancelled" : "Analysis finished sucessfully", controlsX, controlsTextPadding);
+        textSize(16);
+        text("Results are in the Results folder\nUse the slider or the arrow keys\nto look through the images", controlsX, 2*controlsTextPadding);
+        text(scrubber.describe(scrubFrame), controlsX, 5*controlsTextPadding + 4*RANGE_HEIGHT);
+
+        // Filmstrip centered on the selected frame
+        int stripWidth = ThumbnailAtlas.STRIP_SIZE + 4;
+        int shown = Math.max(1, controlsWidth / stripWidth);
+        int first = Math.max(0, Math.min(scrubFrame - shown/2, scrubber.size() - shown));
+        int stripY = height - ThumbnailAtlas.STRIP_SIZE - controlsPadding;
+        for (int i = 0; i < shown && first + i < scrubber.size(); i++) {
+            int frame = first + i;
+            PImage thumbnail = scrubber.thumbnail(frame, 1);
+            int x = controlsX + i * stripWidth;
+            if (frame == scrubFrame) {
+                fill(0, 255, 0);
+                rect(x - 2, stripY - 2, stripWidth, ThumbnailAtlas.STRIP_SIZE + 4);
+            }
+            if (thumbnail != null) {
+                image(thumbnail, x, stripY);
+            }
+        }
+    }
+
+    /**
+     * Event handler for the scrubber slider
+     * @param theValue
+     */
+    public void scrubFrame(int theValue){
+        if (scrubber != null) {
+            scrubFrame = Math.max(0, Math.min(theValue, scrubber.size() - 1));
+        }
+    }
+
+    @Override
+    public void keyPressed() {
+        // Switch between the sample image and the grid of frames
+        if (stage == Stage.SELECT_VALUES && previewGrid != null && (key == 'g' || key == 'G')) {
+            if (backgroundMode) {
+                System.out.println("The grid can't show --background, it needs consecutive frames");
+            }else {
+                gridPreview = !gridPreview;
+                if (gridPreview) {
+                    previewGrid.update(imagePipeline.config());
+                }
+            }
+        }
+
+        // Step through the images once the analysis is done
+        if (scrubber != null && key == CODED) {
+            if (keyCode == LEFT && scrubFrame > 0) {
+                scrubSlider.setValue(scrubFrame - 1);
+            }else if (keyCode == RIGHT && scrubFrame < scrubber.size() - 1) {
+                scrubSlider.setValue(scrubFrame + 1);
+            }
+        }
+    }
+
     @Override
     public void stop() {
         super.stop();
+        if (previewGrid != null) {
+            previewGrid.shutdown();
+        }
+        if (rawFrames != null) {
+            try {
+                rawFrames.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        // Let the analysis finish its frame so it doesn't write to a closed store
+        BatchJob job = analysisJob;
+        if (job != null) {
+            job.cancel();
+            try {
+                job.awaitFinished(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
         // Close the writers
-        textOutput.flush();
-        textOutput.close();
-        saveTable(csvOutput, "Results\\results_" + time + ".csv");
+        exportResults();
+        if (scrubber != null) {
+            try {
+                scrubber.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            scrubber = null;
+        }
     }
 
     @Override
@@ -469,7 +756,7 @@ public class Main extends PApplet{
                 System.out.println("Top Corner: x=" + topCorner.x + " y=" + topCorner.y);
                 System.out.println("Bottom Corner: x=" + bottomCorner.x + " y=" + bottomCorner.y);
 
-                Mat newImage = Imgcodecs.imread(files[files.length - 1].getAbsolutePath());
+                Mat newImage = loadFrame(frameCount() - 1, new Size(displayImageBoundaryWidth, displayImageBoundaryHeight), null);
                 /*
                 System.out.println("Image width: " + newImage.width());
                 System.out.println("Image height: " + newImage.height());
@@ -478,7 +765,6 @@ public class Main extends PApplet{
                 System.out.println("Bottom corner mapped: " + map(mouseX, 0, displayImageBoundaryWidth, 0, newImage.width()));
                 System.out.println("Display image w: " + displayImageBoundaryWidth + " h: " + displayImageBoundaryHeight);
                 */
-                Imgproc.resize(newImage, newImage, new Size(displayImageBoundaryWidth, displayImageBoundaryHeight));
 
                 imagePipeline.enableROI(topCorner, bottomCorner);
                 //imagePipeline.process(newImage);
@@ -529,6 +815,37 @@ public class Main extends PApplet{
         switchModes();
     }
 
+    /**
+     * Event handler for the pause button, pauses or resumes the analysis
+     * @param theValue
+     */
+    public void pauseAnalysis(int theValue){
+        BatchJob job = analysisJob;
+        if (job == null) {
+            return;
+        }
+        if (job.state() == BatchJob.State.PAUSED) {
+            job.resume();
+            pauseButton.setLabel("Pause");
+        }else {
+            job.pause();
+            pauseButton.setLabel("Resume");
+        }
+    }
+
+    /**
+     * Event handler for the cancel button, stops the analysis after the current image
+     * @param theValue
+     */
+    public void cancelAnalysis(int theValue){
+        BatchJob job = analysisJob;
+        if (job != null) {
+            job.cancel();
+            pauseButton.setLock(true);
+            cancelButton.setLock(true);
+        }
+    }
+
     public void selectImage(int theValue){
         System.out.println("Image select");
 
@@ -552,20 +869,24 @@ public class Main extends PApplet{
             System.out.println("Filepath: " + selection.getAbsolutePath());
             File directory = new File(selection.getAbsolutePath());
             if (directory.isDirectory()) {
-                files = directory.listFiles();
-
-                try {
-                    roiImage = Imgcodecs.imread(files[files.length - 1].getAbsolutePath());
-                    Imgproc.resize(roiImage, roiImage, new Size(displayImageBoundaryWidth, displayImageBoundaryHeight));
-                    displayImage = toPImage(roiImage);
-                    //displayImage.resize(displayImageBoundaryWidth, displayImageBoundaryHeight);
-
-                    // HACK ALERT!! Dumb library won't work when set invisible so it gets moved off screen
-                    selectImagesButton.setPosition(width + 100, height + 100);
-                } catch(NullPointerException e) {
-                    //e.printStackTrace();
-                    imgErrorMessage = "Unable to load images. Please select a folder with images";
-                }
+                files = null;
+                // The file system often lists in order, so the first images found are likely the first frames.
+                // Once the listing is done the first frames in natural order are decoded as well, see scanFinished
+                Size displaySize = new Size(displayImageBoundaryWidth, displayImageBoundaryHeight);
+                AtomicInteger prefetched = new AtomicInteger();
+                imageScanner = ImageScanner.start(directory, file -> {
+                    if (prefetched.getAndIncrement() < PREFETCH_FRAMES) {
+                        prefetcher.execute(() -> {
+                            try {
+                                frameCache.prefetch(file, displaySize);
+                            } catch (RuntimeException e) {
+                                // Not an image after all, the analysis reports it
+                            }
+                        });
+                    }
+                });
+                // HACK ALERT!! Dumb library won't work when set invisible so it gets moved off screen
+                selectImagesButton.setPosition(width + 100, height + 100);
 
                 //ROISwitch.setLock(true);
             }else {
@@ -574,6 +895,50 @@ public class Main extends PApplet{
         }
     }
 
+    /**
+     * Takes the images from the finished folder listing and shows the last one for selecting the ROI
+     */
+    private void scanFinished() {
+        ImageScanner scanner = imageScanner;
+        imageScanner = null;
+        try {
+            files = scanner.awaitFiles();
+        } catch (IOException | InterruptedException e) {
+            files = new File[0];
+        }
+        openRawFrames(scanner.rawFiles());
+        System.out.println(frameCount() + " frames in " + scanner.getDirectory());
+
+        if (frameCount() == 0) {
+            files = null;
+            imgErrorMessage = "Unable to load images. Please select a folder with images";
+            selectImagesButton.setPosition((displayImageBoundaryWidth - selectImagesButton.getWidth()) / 2, displayImageBoundaryHeight / 2);
+            return;
+        }
+        if (rawFrames == null) {
+            // The first frames in frame order, the ones found first while listing may not be them. Already decoded ones are skipped.
+            Size displaySize = new Size(displayImageBoundaryWidth, displayImageBoundaryHeight);
+            for (int i = 0; i < Math.min(PREFETCH_FRAMES, files.length); i++) {
+                File file = files[i];
+                prefetcher.execute(() -> {
+                    try {
+                        frameCache.prefetch(file, displaySize);
+                    } catch (RuntimeException e) {
+                        // Not an image after all, the analysis reports it
+                    }
+                });
+            }
+        }
+        try {
+            roiImage = loadFrame(frameCount() - 1, new Size(displayImageBoundaryWidth, displayImageBoundaryHeight), null);
+            displayImage = toPImage(roiImage);
+            //displayImage.resize(displayImageBoundaryWidth, displayImageBoundaryHeight);
+        } catch(NullPointerException e) {
+            //e.printStackTrace();
+            imgErrorMessage = "Unable to load images. Please select a folder with images";
+        }
+    }
+
     /**
      * Method for getting the test image
      * @param selection
@@ -586,8 +951,28 @@ public class Main extends PApplet{
 
             try {
                 // Load inital image
-                initialImage = Imgcodecs.imread(selection.getAbsolutePath());
-                Imgproc.resize(initialImage, initialImage, new Size(controlsX - controlsPadding, height));
+                if (RawFrameFile.isRaw(selection)) {
+                    // First frame of a raw frame file
+                    try (RawFrameFile raw = RawFrameFile.open(selection)) {
+                        Mat first = raw.read(0);
+                        initialImage = new Mat();
+                        Imgproc.resize(first, initialImage, new Size(controlsX - controlsPadding, height));
+                        first.release();
+                    }
+                }else {
+                    initialImage = frameCache.get(selection, new Size(controlsX - controlsPadding, height));
+                }
+
+                // Sample the folder of the image for the preview grid
+                if (previewGrid == null) {
+                    // The same pipeline as the analysis, a background model can't be shown on frames spread over the run
+                    Supplier<MaskPipeline> gridPipelines = pipelineGraph != null ? pipelineGraph::compile : GripPipeline::new;
+                    previewGrid = new PreviewGrid(controlsX - controlsPadding, height, gridFrames != null ? gridFrames.length : PreviewGrid.DEFAULT_SAMPLES,
+                            frameCache, Runtime.getRuntime().availableProcessors(), gridPipelines);
+                }
+                previewGrid.setSamples(selection.getAbsoluteFile().getParentFile(), gridFrames,
+                        normalizeMode ? IlluminationNormalizer.measure(initialImage) : null);
+                gridImage = null;
 
                 // HACK ALERT!! Dumb library wont work when set invisible so it gets moved off screen
                 selectImagesButton.setPosition(width + 100, height + 100);
@@ -676,6 +1061,10 @@ public class Main extends PApplet{
                 timeSlider.setLock(false);
                 confirmButton.setVisible(false);
                 confirmButton.setLock(true);
+                pauseButton.setVisible(true);
+                pauseButton.setLock(false);
+                cancelButton.setVisible(true);
+                cancelButton.setLock(false);
 
                 // Run the analysis
                 thread("analyze");
@@ -741,8 +1130,8 @@ public class Main extends PApplet{
             displayImage.resize(controlsX - controlsPadding, height);
             rgbVisited = true;
         }else if (mode == Threshold.RGB && rgbVisited) {
-            imagePipeline.process(initialImage);
-            displayImage = toPImage(imagePipeline.cvDilateOutput());
+            previewPipeline.process(initialImage, imagePipeline.config());
+            displayImage = toPImage(previewPipeline.output());
             displayImage.resize(controlsX - controlsPadding, height);
         }
 
@@ -751,10 +1140,14 @@ public class Main extends PApplet{
             displayImage.resize(controlsX - controlsPadding, height);
             hslVisited = true;
         }else if (mode == Threshold.HSL && hslVisited) {
-            imagePipeline.process(initialImage);
-            displayImage = toPImage(imagePipeline.cvDilateOutput());
+            previewPipeline.process(initialImage, imagePipeline.config());
+            displayImage = toPImage(previewPipeline.output());
             displayImage.resize(controlsX - controlsPadding, height);
         }
+
+        if (gridPreview) {
+            previewGrid.update(imagePipeline.config());
+        }
     }
 
     /**
@@ -800,11 +1193,14 @@ public class Main extends PApplet{
         }
 
         if (processingRequired) {
-            imagePipeline.process(initialImage);
+            previewPipeline.process(initialImage, imagePipeline.config());
             //displayImage = new PImage(toBufferedImage(imagePipeline.hslThresholdOutput()));
-            displayImage = toPImage(imagePipeline.cvDilateOutput());
+            displayImage = toPImage(previewPipeline.output());
             displayImage.resize(controlsX - controlsPadding, height);
             //image(displayImage, 0.0f, 0.0f);
+            if (gridPreview) {
+                previewGrid.update(imagePipeline.config());
+            }
             processingRequired = false;
         }
     }
@@ -860,82 +1256,710 @@ public class Main extends PApplet{
 
     public void analyze(){
         //Nice things
-        percentDone = 0;
+        BatchJob job = new BatchJob("Analysis", frameCount());
+        analysisJob = job;
 
         double timeInterval = timeSlider.getValue();
 
-        for (int i = 0; i< files.length; i++) {
-            percentDone = (int)(((double)i / files.length) * 100.0);
-            // Load in image
-            Mat sourceImage = Imgcodecs.imread(files[i].getAbsolutePath());
-            Imgproc.resize(sourceImage, sourceImage, new Size(displayImageBoundaryWidth, displayImageBoundaryHeight));
-
-            // Process the image
-            imagePipeline.process(sourceImage);
-
-            // Find contours
-            ArrayList<MatOfPoint> contours = new ArrayList<>();
-            Mat hierarchy = new Mat();
-            Imgproc.findContours(imagePipeline.cvDilateOutput(), contours, hierarchy, Imgproc.RETR_TREE, Imgproc.CHAIN_APPROX_NONE);
-
-            Mat outputImage = new Mat();
-            if (contours.size() > 0) {
-                // Find largest contour
-                MatOfPoint largestContour = contours.get(0);
-                for (MatOfPoint contour : contours){
-                    if (Imgproc.contourArea(contour) > Imgproc.contourArea(largestContour)) {
-                        largestContour = contour;
+        String[] filenames = new String[frameCount()];
+        for (int i = 0; i < filenames.length; i++) {
+            filenames[i] = frameName(i);
+        }
+        // Kept locally as well so a stop() from the GUI thread can't pull it out from under the loop
+        ResultStore store;
+        try {
+            store = ResultStore.create(new File(sketchPath("Results\\results_" + time + ".lrs")), filenames);
+        } catch (IOException e) {
+            e.printStackTrace();
+            job.cancel();
+            job.finish();
+            return;
+        }
+        resultStore = store;
+        saveJob(timeInterval);
+
+        if (shardCount > 1) {
+            analyzeSharded(store, job, timeInterval);
+            return;
+        }
+
+        // Thumbnails for the scrubber, written in the background
+        File atlasFile = new File(sketchPath("Results\\thumbnails_" + time + ".lbt"));
+        ThumbnailAtlas atlas = null;
+        try {
+            atlas = ThumbnailAtlas.create(atlasFile, filenames.length, displayImageBoundaryWidth, displayImageBoundaryHeight);
+        } catch (IOException e) {
+            System.out.println("Unable to create the thumbnails, the scrubber won't be available: " + e.getMessage());
+        }
+
+        // Final masks, to measure something else later without processing the images again
+        MaskStore maskStore = null;
+        if (saveMasks) {
+            try {
+                maskStore = MaskStore.create(new File(sketchPath("Results\\masks_" + time + MaskStore.EXTENSION)),
+                        displayImageBoundaryWidth, displayImageBoundaryHeight, filenames.length);
+            } catch (IOException e) {
+                System.out.println("Unable to create the mask store, the masks won't be saved: " + e.getMessage());
+            }
+        }
+
+        ObjectRecordWriter objectWriter = null;
+        if (objectsMode) {
+            try {
+                objectWriter = ObjectRecordWriter.create(new File(sketchPath("Results\\objects_" + time + ".csv")), skipUnchanged);
+            } catch (IOException e) {
+                System.out.println("Unable to create the object results: " + e.getMessage());
+            }
+        }
+
+        AnnotatedWriter annotatedWriter = null;
+        if (annotateSpec != null) {
+            try {
+                annotatedWriter = AnnotatedWriter.create(annotateSpec, new File(sketchPath("Results\\annotated_" + time)),
+                        Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+            } catch (IllegalArgumentException e) {
+                System.out.println("Unable to save the annotated frames: " + e.getMessage());
+            }
+        }
+
+        TiledProcessor tiledProcessor = null;
+        if (tiledMode) {
+            tiledProcessor = new TiledProcessor(TiledProcessor.DEFAULT_TILE_SIZE, Runtime.getRuntime().availableProcessors());
+        }
+        Size displaySize = new Size(displayImageBoundaryWidth, displayImageBoundaryHeight);
+        // The values were picked on the sample image, so its lighting inside the ROI is the reference
+        double[] lighting = normalizeMode ? IlluminationNormalizer.measure(initialImage, imagePipeline.config(), displaySize) : null;
+
+        // Frame numbers in the order they are measured
+        ProgressiveSchedule schedule = progressiveStride > 0 ? new ProgressiveSchedule(filenames.length, progressiveStride) : null;
+        if (schedule != null) {
+            try {
+                progressReader = ResultStoreReader.open(store.getFile());
+            } catch (IOException e) {
+                System.out.println("Unable to show the rough curve: " + e.getMessage());
+            }
+        }
+
+        FrameMeasurer measurer = new FrameMeasurer(job, store, filenames, timeInterval, schedule != null ? schedule.order() : null,
+                displaySize, lighting, tiledProcessor, atlas, maskStore, objectWriter, annotatedWriter);
+        if (schedule != null) {
+            measureProgressive(schedule, measurer);
+        }else {
+            for (int position = 0; position < filenames.length; position++) {
+                if (!measurer.measure(position, filenames.length)) {
+                    break;
+                }
+            }
+        }
+        measurer.finish();
+
+        if (progressReader != null) {
+            try {
+                progressReader.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            progressReader = null;
+        }
+        if (tiledProcessor != null) {
+            tiledProcessor.shutdown();
+        }
+        if (objectWriter != null) {
+            try {
+                objectWriter.close();
+                System.out.println(objectWriter.objectCount() + " objects saved to " + objectWriter.getFile());
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        if (annotatedWriter != null) {
+            annotatedWriter.close();
+            System.out.println("Annotated frames saved to " + annotatedWriter.getTarget());
+        }
+        if (maskStore != null) {
+            try {
+                maskStore.close();
+                System.out.println("Masks saved to " + maskStore.getFile());
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        // Close the writers, a cancelled run keeps everything up to the last finished image
+        File storeFile = store.getFile();
+        exportResults();
+        if (atlas != null) {
+            try {
+                atlas.close();
+                scrubber = ResultScrubber.open(storeFile, atlasFile, this::toPImage);
+            } catch (IOException e) {
+                System.out.println("Unable to open the thumbnails: " + e.getMessage());
+            }
+        }
+
+        // When finished
+        job.finish();
+        System.out.println("Frame cache: " + frameCache.stats());
+    }
+
+    /**
+     * Measures the first pass of a progressive analysis on this thread and spreads every later pass over a pool of
+     * workers, each with its own measurer. Frames of a pass don't depend on each other and are recorded by frame
+     * number, so the order they finish in doesn't matter. The rough curve is saved between passes.
+     * @param schedule the order of the analysis
+     * @param first measurer of the analysis thread
+     */
+    private void measureProgressive(ProgressiveSchedule schedule, FrameMeasurer first) {
+        int threads = Runtime.getRuntime().availableProcessors();
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        List<FrameMeasurer> measurers = new ArrayList<>(threads);
+        // A batch never spans two chunks
+        int chunk = Math.max(PROGRESSIVE_CHUNK, batchSize);
+        try {
+            for (int pass = 0; pass < schedule.passes(); pass++) {
+                int start = schedule.start(pass);
+                int end = schedule.end(pass);
+                progressNote = "Pass " + (pass + 1) + " of " + schedule.passes() + ", every " + schedule.stride(pass) + " frames";
+                if (pass == 0) {
+                    for (int position = start; position < end; position++) {
+                        if (!first.measure(position, end)) {
+                            return;
+                        }
+                    }
+                }else {
+                    AtomicInteger next = new AtomicInteger(start);
+                    AtomicBoolean stopped = new AtomicBoolean();
+                    List<Future<?>> futures = new ArrayList<>(threads);
+                    for (int w = 0; w < threads; w++) {
+                        if (measurers.size() == w) {
+                            measurers.add(first.copy());
+                        }
+                        FrameMeasurer measurer = measurers.get(w);
+                        futures.add(workers.submit(() -> {
+                            for (int from = next.getAndAdd(chunk); from < end && !stopped.get(); from = next.getAndAdd(chunk)) {
+                                int to = Math.min(end, from + chunk);
+                                for (int position = from; position < to; position++) {
+                                    if (!measurer.measure(position, to)) {
+                                        stopped.set(true);
+                                        return;
+                                    }
+                                }
+                            }
+                        }));
+                    }
+                    for (Future<?> future : futures) {
+                        future.get();
+                    }
+                    if (stopped.get()) {
+                        return;
+                    }
+                }
+                if (pass + 1 < schedule.passes()) {
+                    saveProgress(schedule, pass);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            first.job.cancel();
+        } catch (ExecutionException e) {
+            e.getCause().printStackTrace();
+            first.job.cancel();
+        } finally {
+            // Workers still running after a failure stop at their next frame
+            workers.shutdown();
+            try {
+                workers.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            for (FrameMeasurer measurer : measurers) {
+                measurer.finish();
+            }
+        }
+    }
+
+    /**
+     * Saves the frames measured so far as a rough curve, in frame order, once a pass of a progressive analysis is done
+     * @param schedule the order of the analysis
+     * @param pass the pass that is done
+     */
+    private void saveProgress(ProgressiveSchedule schedule, int pass) {
+        ResultStoreReader progress = progressReader;
+        if (progress == null) {
+            return;
+        }
+        File file = new File(sketchPath("Results\\progress_" + time + ".csv"));
+        try {
+            progress.exportCsv(file);
+            System.out.println("Pass " + (pass + 1) + " of " + schedule.passes() + " done, curve with every "
+                    + schedule.stride(pass) + " frames saved to " + file);
+        } catch (IOException e) {
+            System.out.println("Unable to save the rough curve: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Saves the folder and values of this analysis as an experiment for the job queue, see {@link JobQueue}
+     * @param timeInterval seconds between images
+     */
+    private void saveJob(double timeInterval) {
+        if (rawFrames != null || files.length == 0) {
+            return;
+        }
+        JSONObject job = new JSONObject();
+        job.setString("name", time);
+        job.setString("folder", files[0].getAbsoluteFile().getParent());
+        job.setJSONObject("config", imagePipeline.config().toJSON());
+        job.setInt("width", displayImageBoundaryWidth);
+        job.setInt("height", displayImageBoundaryHeight);
+        job.setDouble("interval", timeInterval);
+        saveJSONObject(job, sketchPath("Results\\job_" + time + ".json"));
+    }
+
+    /**
+     * Uses the first raw frame file among the selected files, if there is one
+     * @param listed the files of the selected folder
+     */
+    private void openRawFrames(File[] listed) {
+        if (rawFrames != null) {
+            try {
+                rawFrames.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            rawFrames = null;
+        }
+        if (listed == null) {
+            return;
+        }
+        for (File file : listed) {
+            if (RawFrameFile.isRaw(file)) {
+                try {
+                    rawFrames = RawFrameFile.open(file);
+                    System.out.println("Reading " + rawFrames.size() + " " + rawFrames.format() + " frames from " + file.getName());
+                } catch (IOException e) {
+                    System.out.println("Unable to read " + file.getName() + ", using the images: " + e.getMessage());
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return number of frames to analyze
+     */
+    private int frameCount() {
+        return rawFrames != null ? rawFrames.size() : files.length;
+    }
+
+    /**
+     * @param frame frame number
+     * @return name of the frame in the results
+     */
+    private String frameName(int frame) {
+        return rawFrames != null ? rawFrames.name(frame) : files[frame].getName();
+    }
+
+    /**
+     * Loads a frame from the raw frame file or the images
+     * @param frame frame number
+     * @param size size to load the frame at, null for full resolution
+     * @param config values whose ROI limits the Bayer demosaicing, null for the whole frame
+     * @return the frame, owned by the caller
+     */
+    private Mat loadFrame(int frame, Size size, PipelineConfig config) {
+        if (rawFrames == null) {
+            return frameCache.get(files[frame], size);
+        }
+        Size roiSpace = new Size(displayImageBoundaryWidth, displayImageBoundaryHeight);
+        Mat raw = config != null ? rawFrames.read(frame, config, roiSpace) : rawFrames.read(frame);
+        if (size != null) {
+            Imgproc.resize(raw, raw, size);
+        }
+        return raw;
+    }
+
+    /**
+     * Hands an annotated frame to the writer, waiting if it is behind
+     * @param writer the writer, or null if frames aren't saved
+     * @param frame the annotated frame, still owned by the caller
+     * @param sourceName filename of the source image
+     * @param job cancelled if the analysis thread is interrupted while waiting
+     * @return false if the analysis should stop
+     */
+    private boolean saveAnnotated(AnnotatedWriter writer, Mat frame, String sourceName, BatchJob job) {
+        if (writer == null) {
+            return true;
+        }
+        try {
+            writer.write(frame, sourceName);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            job.cancel();
+            return false;
+        }
+    }
+
+    /**
+     * Measures all images in worker processes and merges their results into the store.
+     * No frames are shown and no thumbnails written, the GUI only shows the progress.
+     * @param store the run's store
+     * @param job the analysis job, counts the images measured by all workers
+     * @param timeInterval seconds between images
+     */
+    private void analyzeSharded(ResultStore store, BatchJob job, double timeInterval) {
+        File shardDir = new File(sketchPath("Results\\shards_" + time));
+        File spec = new File(shardDir, "spec.json");
+        try {
+            shardDir.mkdirs();
+            int tileThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / shardCount);
+            ShardCoordinator.writeSpec(spec, files, imagePipeline.config(), displayImageBoundaryWidth, displayImageBoundaryHeight,
+                    timeInterval, tiledMode, coarseFactor, pipelineFile, tileThreads,
+                    backgroundMode ? new double[] {backgroundRate, backgroundThreshold} : null,
+                    normalizeMode ? IlluminationNormalizer.measure(initialImage, imagePipeline.config(),
+                            new Size(displayImageBoundaryWidth, displayImageBoundaryHeight)) : null,
+                    rawFrames != null ? rawFrames.getFile() : null);
+            new ShardCoordinator(shardDir, shardCount).run(spec, frameCount(), store, job);
+            spec.delete();
+            // Only the logs of failed workers are left
+            shardDir.delete();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        exportResults();
+        job.finish();
+    }
+
+    /**
+     * Measures one frame at full resolution, tiled or coarse to fine, and records the result.
+     * Highest and lowest pixel are in full resolution pixels.
+     * @param measure finds the largest blob, ROI in full resolution pixels
+     * @param sourceImage the full resolution frame, released once measured
+     * @param store where to record the result
+     * @param frame the frame number
+     * @param elapsed elapsed time of the frame in seconds
+     * @return the display sized frame with the bounding box drawn on it
+     */
+    private Mat analyzeFullResolution(BiFunction<Mat, PipelineConfig, Blob> measure, Mat sourceImage, ResultStore store, int frame, double elapsed) {
+        // The ROI was picked on the display sized image
+        double scaleX = (double)sourceImage.cols() / displayImageBoundaryWidth;
+        double scaleY = (double)sourceImage.rows() / displayImageBoundaryHeight;
+        PipelineConfig config = imagePipeline.config().transformROI(scaleX, scaleY, 0, 0);
+
+        Blob blob = measure.apply(sourceImage, config);
+
+        Mat outputImage = new Mat();
+        Imgproc.resize(sourceImage, outputImage, new Size(displayImageBoundaryWidth, displayImageBoundaryHeight), 0, 0, Imgproc.INTER_AREA);
+        sourceImage.release();
+
+        if (blob != null) {
+            Imgproc.rectangle(outputImage, new Point(blob.x / scaleX, blob.y / scaleY),
+                    new Point((blob.x + blob.width) / scaleX, (blob.y + blob.height) / scaleY), new Scalar(0, 255, 0), 3);
+            store.write(frame, frame, elapsed, blob.highest(), blob.lowest());
+        } else {
+            store.writeEmpty(frame, frame, elapsed);
+        }
+        return outputImage;
+    }
+
+    /**
+     * Closes the result store and exports it to the text and CSV results.
+     * Does nothing if there is no open store, so it is safe to call more than once.
+     */
+    private synchronized void exportResults() {
+        if (resultStore == null) {
+            return;
+        }
+        try {
+            resultStore.close();
+            try (ResultStoreReader reader = ResultStoreReader.open(resultStore.getFile())) {
+                reader.exportText(new File(sketchPath("Results\\results_" + time + ".txt")));
+                reader.exportCsv(new File(sketchPath("Results\\results_" + time + ".csv")));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        resultStore = null;
+    }
+
+    /**
+     * Measures the frames of one analysis one at a time and records them. Every measurer has its own pipeline
+     * and buffers, and shares the outputs, which take frames from several threads, with the measurers made
+     * from it.
+     */
+    private class FrameMeasurer {
+
+        private final BatchJob job;
+        private final ResultStore store;
+        private final String[] filenames;
+        private final double timeInterval;
+        // Frame numbers in the order they are measured, or null for frame number order
+        private final int[] order;
+        private final Size displaySize;
+        // Median color of the sample image, or null if the lighting isn't corrected
+        private final double[] lighting;
+        private final TiledProcessor tiledProcessor;
+        private final ThumbnailAtlas atlas;
+        private final MaskStore maskStore;
+        private final ObjectRecordWriter objectWriter;
+        private final AnnotatedWriter annotatedWriter;
+
+        // Own outputs, but the same values as the preview
+        private final MaskPipeline analysisPipeline;
+        private final CoarseToFineProcessor coarseProcessor;
+        private final MosaicProcessor mosaicProcessor;
+        private final IlluminationNormalizer normalizer;
+        // Frames of the current batch, loaded and measured together, and the position of the first one
+        private final List<Mat> batchFrames = new ArrayList<>();
+        private Blob[] batchBlobs = new Blob[0];
+        private int batchStart = 0;
+
+        // Frames that look like the last measured one keep its measurement
+        private final ChangeDetector changeDetector;
+        private int lastMeasured = -1;
+        private List<Blob> lastObjects = null;
+
+        FrameMeasurer(BatchJob job, ResultStore store, String[] filenames, double timeInterval, int[] order, Size displaySize,
+                      double[] lighting, TiledProcessor tiledProcessor, ThumbnailAtlas atlas, MaskStore maskStore,
+                      ObjectRecordWriter objectWriter, AnnotatedWriter annotatedWriter) {
+            this.job = job;
+            this.store = store;
+            this.filenames = filenames;
+            this.timeInterval = timeInterval;
+            this.order = order;
+            this.displaySize = displaySize;
+            this.lighting = lighting;
+            this.tiledProcessor = tiledProcessor;
+            this.atlas = atlas;
+            this.maskStore = maskStore;
+            this.objectWriter = objectWriter;
+            this.annotatedWriter = annotatedWriter;
+
+            if (backgroundMode) {
+                analysisPipeline = new BackgroundPipeline(backgroundRate, backgroundThreshold);
+            }else if (pipelineGraph != null) {
+                analysisPipeline = pipelineGraph.compile();
+            }else {
+                analysisPipeline = new GripPipeline(imagePipeline.configReference());
+            }
+            coarseProcessor = coarseFactor > 0 ? new CoarseToFineProcessor(coarseFactor) : null;
+            mosaicProcessor = batchSize > 0 ? new MosaicProcessor(batchSize) : null;
+            normalizer = lighting != null ? new IlluminationNormalizer(lighting) : null;
+            changeDetector = skipUnchanged ? new ChangeDetector(changeTolerance, maxCarried) : null;
+        }
+
+        /**
+         * A measurer for another thread, recording to the same outputs
+         */
+        FrameMeasurer copy() {
+            return new FrameMeasurer(job, store, filenames, timeInterval, order, displaySize, lighting, tiledProcessor,
+                    atlas, maskStore, objectWriter, annotatedWriter);
+        }
+
+        /**
+         * Measures and records one frame
+         * @param position position of the frame in the order
+         * @param limit end of the positions this measurer goes through, a batch doesn't reach past it
+         * @return false if the analysis should stop
+         */
+        boolean measure(int position, int limit) {
+            int i = order != null ? order[position] : position;
+            // Blocks while paused, stops here when cancelled
+            if (!job.awaitNext()) {
+                return false;
+            }
+            // Load in image, full resolution for the tiled processor and display size otherwise
+            long t = System.nanoTime();
+            boolean fullResolution = tiledProcessor != null || coarseProcessor != null;
+            Size loadSize = fullResolution ? null : displaySize;
+            Mat sourceImage = null;
+
+            byte[] signature = null;
+            if (changeDetector != null) {
+                // Raw frames are read anyway, images only need a reduced decode
+                if (rawFrames != null) {
+                    sourceImage = loadFrame(i, loadSize, imagePipeline.config());
+                    signature = changeDetector.signature(sourceImage, imagePipeline.config(), displaySize);
+                }else {
+                    signature = changeDetector.signature(files[i], imagePipeline.config(), displaySize);
+                }
+                t = job.time("signature", t);
+
+                if (lastMeasured >= 0 && changeDetector.canCarry(signature)) {
+                    if (sourceImage != null) {
+                        sourceImage.release();
+                    }
+                    store.carry(i, i, timeInterval * i, lastMeasured);
+                    if (maskStore != null) {
+                        try {
+                            maskStore.carry(i, lastMeasured);
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                    if (lastObjects != null) {
+                        try {
+                            objectWriter.write(filenames[i], timeInterval * i, lastObjects, true);
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                        }
                     }
+                    // No thumbnail or annotated image, the earlier frame's pixels would show under this frame's name
+                    changeDetector.carried();
+                    job.time("carry", t);
+                    job.frameDone();
+                    return true;
                 }
+            }
+
+            if (mosaicProcessor != null) {
+                if (position >= batchStart + batchBlobs.length) {
+                    batchStart = position;
+                    batchBlobs = measureBatch(position, limit);
+                    t = System.nanoTime();
+                }
+                // Already normalized
+                sourceImage = batchFrames.set(position - batchStart, null);
+            }else if (sourceImage == null) {
+                sourceImage = rawFrames != null ? loadFrame(i, loadSize, imagePipeline.config()) : frameCache.read(files[i], loadSize);
+                t = job.time("load", t);
+            }
+            if (normalizer != null && mosaicProcessor == null) {
+                normalizer.apply(sourceImage, sourceImage, imagePipeline.config(), displaySize);
+                t = job.time("normalize", t);
+            }
 
-                // Get bounding box
-                Rect boundingRect = Imgproc.boundingRect(largestContour);
-                Point topCorner = new Point(boundingRect.x, boundingRect.y);
-                Point bottomCorner = new Point(boundingRect.x + boundingRect.width, boundingRect.y + boundingRect.height);
-                // Draw bounding box
-                Imgproc.rectangle(sourceImage, topCorner, bottomCorner, new Scalar(0, 255, 0), 3);
-
-                // Resize
-                Imgproc.resize(sourceImage, outputImage, new Size(displayImageBoundaryWidth, displayImageBoundaryHeight));
-
-                // Record results
-                //output.print("Image " + f.getName() + " lowest point : " + lowPoint[file] + " pixels");
-                textOutput.println("Image " + files[i].getName() +
-                        " highest pixel: " + boundingRect.y +
-                        " lowest pixel: " + (boundingRect.y + boundingRect.height) +
-                        " elapsed time: " + df.format(timeInterval * i));
-                TableRow row = csvOutput.addRow();
-                row.setString("Filename", files[i].getName());
-                row.setString("Elapsed Time (sec)", df.format(timeInterval * i));
-                row.setInt("Highest Pixel", boundingRect.y);
-                row.setInt("Lowest Pixel", boundingRect.y + boundingRect.height);
+            Mat outputImage;
+            List<Blob> objects = null;
+            if (fullResolution) {
+                outputImage = tiledProcessor != null
+                        ? analyzeFullResolution(tiledProcessor::process, sourceImage, store, i, timeInterval * i)
+                        : analyzeFullResolution(coarseProcessor::process, sourceImage, store, i, timeInterval * i);
+                t = job.time(tiledProcessor != null ? "tiled" : "coarse to fine", t);
             }else {
-                // Set output image
-                sourceImage.copyTo(outputImage);
+                // Find the largest blob, or every object large enough
+                Blob blob;
+                if (mosaicProcessor != null) {
+                    blob = batchBlobs[position - batchStart];
+                }else if (objectWriter != null) {
+                    // Process the image
+                    analysisPipeline.process(sourceImage, imagePipeline.config());
+                    t = job.time("process", t);
+
+                    // One labelling for the object rows and the largest contour the results keep measuring
+                    objects = new ArrayList<>();
+                    blob = BlobFinder.largestAndAll(analysisPipeline.output(), objectMinArea, objects);
+                    try {
+                        objectWriter.write(filenames[i], timeInterval * i, objects);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }else {
+                    // Process the image
+                    analysisPipeline.process(sourceImage, imagePipeline.config());
+                    t = job.time("process", t);
+                    blob = BlobFinder.largest(analysisPipeline.output());
+                }
+                t = job.time("measure", t);
+
+                if (maskStore != null) {
+                    Mat mask = mosaicProcessor != null ? mosaicProcessor.mask(position - batchStart) : analysisPipeline.output();
+                    try {
+                        maskStore.write(i, mask);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                    if (mosaicProcessor != null) {
+                        mask.release();
+                    }
+                    t = job.time("save mask", t);
+                }
+
+                outputImage = new Mat();
+                if (blob != null) {
+                    // Draw bounding box
+                    if (objects != null) {
+                        for (Blob object : objects) {
+                            Imgproc.rectangle(sourceImage, new Point(object.x, object.y), new Point(object.x + object.width, object.y + object.height), new Scalar(0, 255, 0), 3);
+                        }
+                    }else {
+                        Imgproc.rectangle(sourceImage, new Point(blob.x, blob.y), new Point(blob.x + blob.width, blob.y + blob.height), new Scalar(0, 255, 0), 3);
+                    }
 
-                // Record results
-                // N/A indicates nothing detected
-                textOutput.println("Image " + files[i].getName() +
-                        " highest pixel: N/A" +
-                        " lowest pixel: N/A" +
-                        " elapsed time: " + df.format(timeInterval * i));
-                TableRow row = csvOutput.addRow();
-                row.setString("Filename", files[i].getName());
-                row.setString("Elapsed Time (sec)", df.format(timeInterval * i));
-                row.setString("Highest Pixel", "N/A");
-                row.setString("Lowest Pixel", "N/A");
+                    // Resize
+                    Imgproc.resize(sourceImage, outputImage, displaySize);
+
+                    // Record results
+                    store.write(i, i, timeInterval * i, blob.highest(), blob.lowest());
+                }else {
+                    // Set output image
+                    sourceImage.copyTo(outputImage);
+
+                    // Record results
+                    // Exported as N/A, which indicates nothing detected
+                    store.writeEmpty(i, i, timeInterval * i);
+                }
+                sourceImage.release();
             }
 
-            displayImage = toPImage(outputImage);
+            if (changeDetector != null) {
+                changeDetector.measured(signature);
+                lastMeasured = i;
+                lastObjects = objects;
+            }
+            if (atlas != null) {
+                atlas.submit(i, outputImage);
+            }
+            if (!saveAnnotated(annotatedWriter, outputImage, filenames[i], job)) {
+                outputImage.release();
+                return false;
+            }
+            analysisFrames.publish(outputImage);
+            job.time("record", t);
+            job.frameDone();
+            return true;
         }
 
-        // Close the writers
-        textOutput.flush();
-        textOutput.close();
-        saveTable(csvOutput, "Results\\results_" + time + ".csv");
+        /**
+         * Loads the next batch of frames and measures them together
+         * @param first position of the first frame of the batch in the order
+         * @param limit end of the positions the batch may take
+         * @return the largest blob of each frame, null where nothing was found
+         */
+        private Blob[] measureBatch(int first, int limit) {
+            long t = System.nanoTime();
+            batchFrames.clear();
+            int last = Math.min(limit, first + mosaicProcessor.batchSize());
+            for (int position = first; position < last; position++) {
+                int i = order != null ? order[position] : position;
+                Mat frame = rawFrames != null ? loadFrame(i, displaySize, imagePipeline.config()) : frameCache.read(files[i], displaySize);
+                if (normalizer != null) {
+                    normalizer.apply(frame, frame, imagePipeline.config(), displaySize);
+                }
+                batchFrames.add(frame);
+            }
+            t = job.time("load", t);
+            Blob[] blobs = mosaicProcessor.process(batchFrames, imagePipeline.config());
+            job.time("process", t);
+            return blobs;
+        }
 
-        // When finished
-        analysisDone = true;
+        /**
+         * Releases the buffers once no more frames are measured
+         */
+        void finish() {
+            // Frames of a batch that was cancelled halfway
+            for (Mat frame : batchFrames) {
+                if (frame != null) {
+                    frame.release();
+                }
+            }
+            if (changeDetector != null) {
+                System.out.println(changeDetector.carriedTotal() + " unchanged frames kept the measurement of an earlier frame");
+            }
+        }
     }
 
     private class DisposeHandler{
@@ -951,10 +1975,206 @@ public class Main extends PApplet{
 
     /**
      * Class's main method. Running this will run the program
-     * @param args
+     * @param args --tiled measures every frame at full resolution in tiles,
+     *             --coarse[=factor] finds the blob on frames factor times smaller and refines its edges at full resolution,
+     *             --progressive[=stride] measures every stride-th frame first and fills in the rest in passes, see {@link ProgressiveSchedule},
+     *             --batch[=n] measures n frames at a time packed into one image, see {@link MosaicProcessor},
+     *             --morphology=spec replaces the erode and dilate, see {@link MorphologySpec},
+     *             --pipeline=file.json runs the stages described in the file instead, see {@link PipelineGraph},
+     *             --background[=rate[:threshold]] detects changes against a running background, see {@link BackgroundPipeline},
+     *             --objects[=minArea] measures every object of at least minArea pixels into objects_time.csv,
+     *             --skip-unchanged[=tolerance[:n]] keeps the last measurement for frames that look unchanged, at most n in a row,
+     *             --normalize corrects each frame's brightness and white balance towards the sample image,
+     *             --grid-frames=a,b,c shows these frame numbers in the preview grid instead of frames spread over the run,
+     *             --annotate=jpg[:quality]|png[:compression]|video[:fps] saves the annotated frames, see {@link AnnotatedWriter},
+     *             --shards=n splits the analysis over n worker processes, see {@link ShardCoordinator},
+     *             --save-masks saves the final mask of every frame into masks_time.lbm, see {@link MaskStore},
+     *             --remeasure=masks.lbm measures the masks saved by an analysis again instead of running the GUI, see {@link MaskRemeasurer},
+     *             --queue=file.json analyzes the experiments listed in the file instead of running the GUI, see {@link JobQueue},
+     *             --serve[=port] runs the measurement service instead of the GUI,
+     *             --serve-check posts a test frame to a measurement service over localhost and checks the answer, see {@link MeasurementService}
      */
     public static void main(String[] args) {
+        for (String arg : args) {
+            if (arg.equals("--tiled")) {
+                tiledMode = true;
+            }else if (arg.startsWith("--coarse")) {
+                coarseFactor = arg.startsWith("--coarse=") ? Integer.parseInt(arg.substring("--coarse=".length())) : CoarseToFineProcessor.DEFAULT_FACTOR;
+            }else if (arg.startsWith("--progressive")) {
+                progressiveStride = arg.startsWith("--progressive=") ? Integer.parseInt(arg.substring("--progressive=".length())) : ProgressiveSchedule.DEFAULT_STRIDE;
+            }else if (arg.startsWith("--batch")) {
+                batchSize = arg.startsWith("--batch=") ? Integer.parseInt(arg.substring("--batch=".length())) : MosaicProcessor.DEFAULT_BATCH_SIZE;
+            }else if (arg.startsWith("--morphology=")) {
+                morphology = MorphologySpec.parse(arg.substring("--morphology=".length()));
+            }else if (arg.startsWith("--pipeline=")) {
+                try {
+                    pipelineFile = new File(arg.substring("--pipeline=".length()));
+                    pipelineGraph = PipelineGraph.load(pipelineFile);
+                } catch (IOException | IllegalArgumentException e) {
+                    System.out.println("Unable to load the pipeline, using the built in one: " + e.getMessage());
+                    pipelineFile = null;
+                }
+            }else if (arg.startsWith("--background")) {
+                backgroundMode = true;
+                if (arg.startsWith("--background=")) {
+                    String[] parts = arg.substring("--background=".length()).split(":");
+                    backgroundRate = Double.parseDouble(parts[0]);
+                    if (parts.length > 1) {
+                        backgroundThreshold = Double.parseDouble(parts[1]);
+                    }
+                }
+            }else if (arg.startsWith("--objects")) {
+                objectsMode = true;
+                if (arg.startsWith("--objects=")) {
+                    objectMinArea = Integer.parseInt(arg.substring("--objects=".length()));
+                }
+            }else if (arg.startsWith("--skip-unchanged")) {
+                skipUnchanged = true;
+                if (arg.startsWith("--skip-unchanged=")) {
+                    String[] parts = arg.substring("--skip-unchanged=".length()).split(":");
+                    changeTolerance = Double.parseDouble(parts[0]);
+                    if (parts.length > 1) {
+                        maxCarried = Integer.parseInt(parts[1]);
+                    }
+                }
+            }else if (arg.equals("--normalize")) {
+                normalizeMode = true;
+            }else if (arg.startsWith("--grid-frames=")) {
+                String[] parts = arg.substring("--grid-frames=".length()).split(",");
+                gridFrames = new int[parts.length];
+                for (int i = 0; i < parts.length; i++) {
+                    gridFrames[i] = Integer.parseInt(parts[i].trim());
+                }
+            }else if (arg.startsWith("--annotate=")) {
+                annotateSpec = arg.substring("--annotate=".length());
+            }else if (arg.startsWith("--shards=")) {
+                shardCount = Integer.parseInt(arg.substring("--shards=".length()));
+            }else if (arg.equals("--save-masks")) {
+                saveMasks = true;
+            }else if (arg.startsWith("--remeasure=")) {
+                remeasure(new File(arg.substring("--remeasure=".length())));
+                return;
+            }else if (arg.startsWith("--queue=")) {
+                runQueue(new File(arg.substring("--queue=".length())));
+                return;
+            }else if (arg.equals("--serve-check")) {
+                try {
+                    boolean passed = MeasurementService.checkRoundTrip();
+                    System.out.println(passed ? "Measurement service round trip passed" : "Measurement service round trip failed");
+                    if (!passed) {
+                        System.exit(1);
+                    }
+                } catch (IOException e) {
+                    System.out.println("Unable to reach the measurement service: " + e.getMessage());
+                    System.exit(1);
+                }
+                return;
+            }else if (arg.startsWith("--serve")) {
+                int port = arg.startsWith("--serve=") ? Integer.parseInt(arg.substring("--serve=".length())) : MeasurementService.DEFAULT_PORT;
+                try {
+                    MeasurementService service = new MeasurementService(port, Runtime.getRuntime().availableProcessors());
+                    service.start();
+                    System.out.println("Measurement service listening on http://localhost:" + service.getPort() + "/measure");
+                } catch (IOException e) {
+                    System.out.println("Unable to start the measurement service: " + e.getMessage());
+                }
+                return;
+            }
+        }
+        if (coarseFactor > 0 && tiledMode) {
+            System.out.println("Coarse to fine already measures at full resolution, tiled mode is off");
+            tiledMode = false;
+        }
+        if ((backgroundMode || objectsMode) && coarseFactor > 0) {
+            System.out.println("Background subtraction and measuring several objects need the whole mask, coarse to fine is off");
+            coarseFactor = 0;
+        }
+        if (saveMasks && (tiledMode || coarseFactor > 0 || shardCount > 1)) {
+            System.out.println("Tiled, coarse to fine and sharded runs never have the whole mask of a frame, masks are not saved");
+            saveMasks = false;
+        }
+        if (objectsMode && shardCount > 1) {
+            System.out.println("Sharded workers only measure the largest object, objects mode is off");
+            objectsMode = false;
+        }
+        if (skipUnchanged && shardCount > 1) {
+            System.out.println("Sharded workers measure every frame, unchanged frames are not skipped");
+            skipUnchanged = false;
+        }
+        if (annotateSpec != null && shardCount > 1) {
+            System.out.println("Sharded workers don't draw the frames, annotated frames are not saved");
+            annotateSpec = null;
+        }
+        if (batchSize > 0 && (tiledMode || coarseFactor > 0 || backgroundMode || pipelineGraph != null || objectsMode || skipUnchanged || shardCount > 1)) {
+            System.out.println("Batches only run the built in pipeline on the resized frames one after another, batching is off");
+            batchSize = 0;
+        }
+        if (progressiveStride > 0 && (backgroundMode || skipUnchanged || objectsMode || shardCount > 1
+                || (annotateSpec != null && annotateSpec.startsWith("video")))) {
+            System.out.println("Background subtraction, skipping unchanged frames, object rows, sharding and annotated video"
+                    + " need the frames in order, progressive mode is off");
+            progressiveStride = 0;
+        }
+        if (backgroundMode && pipelineGraph != null) {
+            System.out.println("Background subtraction replaces the pipeline, --pipeline is ignored");
+            pipelineGraph = null;
+            pipelineFile = null;
+        }
+        if (backgroundMode && tiledMode) {
+            System.out.println("Background subtraction needs the resized frames, tiled mode is off");
+            tiledMode = false;
+        }
+        if (objectsMode && tiledMode) {
+            System.out.println("Measuring several objects needs the resized frames, tiled mode is off");
+            tiledMode = false;
+        }
         String[] applet = new String[] {"Main"};
         PApplet.main(applet);
     }
+
+    /**
+     * Measures the masks of an earlier analysis again without the GUI, into a CSV next to them
+     * @param maskFile the mask store, see {@link MaskStore}
+     */
+    private static void remeasure(File maskFile) {
+        String name = maskFile.getName();
+        if (name.toLowerCase().endsWith(MaskStore.EXTENSION)) {
+            name = name.substring(0, name.length() - MaskStore.EXTENSION.length());
+        }
+        File csv = new File(maskFile.getAbsoluteFile().getParentFile(), name + "_remeasured.csv");
+        File resultFile = MaskRemeasurer.resultStoreFor(maskFile);
+        long start = System.nanoTime();
+        try (MaskStore masks = MaskStore.open(maskFile);
+             ResultStoreReader results = resultFile.isFile() ? ResultStoreReader.open(resultFile) : null) {
+            int measured = MaskRemeasurer.remeasure(masks, results, csv);
+            System.out.println(measured + " masks measured in " + (System.nanoTime() - start) / 1000000 + " ms, saved to " + csv);
+        } catch (IOException e) {
+            System.out.println("Unable to measure the masks: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Analyzes the experiments of a queue file without the GUI and returns once all are done
+     * @param queueFile the queue file, see {@link JobQueue}
+     */
+    private static void runQueue(File queueFile) {
+        JobQueue queue = new JobQueue(Runtime.getRuntime().availableProcessors());
+        try {
+            for (JobQueue.Experiment experiment : JobQueue.load(queueFile)) {
+                try {
+                    queue.submit(experiment);
+                } catch (IOException | IllegalArgumentException e) {
+                    // Only this experiment, the ones already running go on and are exported
+                    System.out.println("Skipped " + experiment.getName() + ": " + e.getMessage());
+                }
+            }
+            queue.awaitIdle();
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Unable to run the queue: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            queue.shutdown();
+        }
+    }
 }
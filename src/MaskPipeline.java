@@ -0,0 +1,22 @@
+import org.opencv.core.Mat;
+
+/**
+ * MaskPipeline interface.
+ *
+ * <p>Something that turns a BGR frame into the binary mask the measurements are taken from,
+ * either {@link GripPipeline} or a pipeline compiled from a {@link PipelineGraph}.
+ */
+public interface MaskPipeline {
+
+    /**
+     * Processes a frame.
+     * @param source the BGR frame
+     * @param config the values to use for the whole frame
+     */
+    void process(Mat source, PipelineConfig config);
+
+    /**
+     * @return the mask of the last processed frame, owned by the pipeline
+     */
+    Mat output();
+}
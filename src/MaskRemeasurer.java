@@ -0,0 +1,114 @@
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.DecimalFormat;
+
+/**
+ * MaskRemeasurer class.
+ *
+ * <p>Takes measurements from the masks an analysis stored (see {@link MaskStore}) instead of from the
+ * images, so a new question about a finished run only costs decoding the runs of each mask. Writes one
+ * CSV row per frame:
+ * <pre>
+ *   Frame,Filename,Elapsed Time (sec),Foreground (px),X,Y,Width,Height,Area (px),Centroid X,Centroid Y
+ * </pre>
+ * Foreground counts every mask pixel, the rest describes the largest blob the same way the analysis
+ * finds it. Filename and elapsed time come from the run's result store when there is one. Frames
+ * without a mask, or with nothing in it, leave the columns they have no value for empty.
+ */
+public class MaskRemeasurer {
+
+    static {
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+    }
+
+    private MaskRemeasurer() {
+    }
+
+    /**
+     * The result store written next to a mask store by the same analysis
+     * @param masks the mask store, named masks_time.lbm
+     * @return results_time.lrs in the same folder, whether it exists or not
+     */
+    public static File resultStoreFor(File masks) {
+        String name = masks.getName();
+        if (name.startsWith("masks_")) {
+            name = "results_" + name.substring("masks_".length());
+        }
+        if (name.toLowerCase().endsWith(MaskStore.EXTENSION)) {
+            name = name.substring(0, name.length() - MaskStore.EXTENSION.length());
+        }
+        return new File(masks.getAbsoluteFile().getParentFile(), name + ".lrs");
+    }
+
+    /**
+     * Measures every frame of a mask store
+     * @param masks the mask store
+     * @param results result store of the same run for filenames and elapsed times, or null
+     * @param csv the file to write, any existing file is replaced
+     * @return number of frames measured
+     * @throws IOException if a file can't be read or written
+     */
+    public static int remeasure(MaskStore masks, ResultStoreReader results, File csv) throws IOException {
+        if (results != null && results.size() != masks.size()) {
+            throw new IOException("The result store has " + results.size() + " frames but the mask store " + masks.size());
+        }
+        File parent = csv.getAbsoluteFile().getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+        DecimalFormat df = new DecimalFormat("#.###");
+        StringBuilder line = new StringBuilder(128);
+        byte[] pixels = new byte[masks.width() * masks.height()];
+        Mat mask = new Mat(masks.height(), masks.width(), CvType.CV_8UC1);
+        int measured = 0;
+
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(csv), StandardCharsets.UTF_8), 1 << 16)) {
+            out.write("Frame,Filename,Elapsed Time (sec),Foreground (px),X,Y,Width,Height,Area (px),Centroid X,Centroid Y\n");
+            for (int i = 0; i < masks.size(); i++) {
+                line.setLength(0);
+                line.append(i).append(',');
+                if (results != null && results.isWritten(i)) {
+                    ResultStoreReader.appendCsv(line, results.filename(i)).append(',');
+                    line.append(df.format(results.elapsed(i))).append(',');
+                } else {
+                    line.append(",,");
+                }
+
+                long foreground = masks.decode(i, pixels);
+                if (foreground < 0) {
+                    line.append(",,,,,,,");
+                } else {
+                    line.append(foreground);
+                    // An empty mask has no blob, no need to look
+                    Blob blob = null;
+                    if (foreground > 0) {
+                        mask.put(0, 0, pixels);
+                        blob = BlobFinder.largest(mask);
+                    }
+                    if (blob != null) {
+                        line.append(',').append(blob.x).append(',').append(blob.y);
+                        line.append(',').append(blob.width).append(',').append(blob.height);
+                        line.append(',').append(df.format(blob.area));
+                        line.append(',').append(df.format(blob.centroidX)).append(',').append(df.format(blob.centroidY));
+                    } else {
+                        line.append(",,,,,,,");
+                    }
+                    measured++;
+                }
+                line.append('\n');
+                out.append(line);
+            }
+        }
+        mask.release();
+        return measured;
+    }
+}
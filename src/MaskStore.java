@@ -0,0 +1,341 @@
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * MaskStore class.
+ *
+ * <p>The final mask of every frame, run length encoded, so new measurements can be taken from the
+ * masks later without decoding and processing the images again (see {@link MaskRemeasurer}).
+ * A mask is stored as the lengths of its runs of background and foreground pixels, row after row,
+ * starting with background, each length as a variable length number of 7 bits per byte. A mask with
+ * one blob takes a few bytes per row instead of one byte per pixel.
+ *
+ * <p>File layout, big endian like the other files of this project:
+ * <pre>
+ *   header   magic "LBMK", version, width, height, frame count, 12 reserved bytes
+ *   index    frame count * (long offset, int length), length 0 for frames without a mask
+ *   runs     the encoded masks in the order they were written
+ * </pre>
+ * Frames can be written in any order. A frame that kept the measurement of an earlier frame points at
+ * that frame's runs instead of repeating them. Writes are thread safe, each thread encodes its mask
+ * on its own and only the append and the index entry are synchronized.
+ */
+public class MaskStore implements Closeable {
+
+    public static final int MAGIC = 0x4C424D4B; // "LBMK"
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 32;
+    public static final int INDEX_ENTRY_SIZE = 12;
+    public static final String EXTENSION = ".lbm";
+
+    private final File file;
+    private final FileChannel channel;
+    private final int width, height, count;
+    // Where the next runs are appended
+    private long end;
+    // Encoding buffers of each writing thread, reused between frames
+    private final ThreadLocal<Encoder> encoders = ThreadLocal.withInitial(Encoder::new);
+
+    private MaskStore(File file, FileChannel channel, int width, int height, int count, long end) {
+        this.file = file;
+        this.channel = channel;
+        this.width = width;
+        this.height = height;
+        this.count = count;
+        this.end = end;
+    }
+
+    /**
+     * Creates a store for masks of the given size
+     * @param file the file to create, any existing file is replaced
+     * @param width width of the masks
+     * @param height height of the masks
+     * @param count number of frames
+     * @return the open store
+     * @throws IOException if the file can't be created
+     */
+    public static MaskStore create(File file, int width, int height, int count) throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putInt(width).putInt(height).putInt(count);
+            header.rewind();
+            writeFully(channel, header, 0);
+            // Unwritten index entries read back as 0
+            long end = HEADER_SIZE + (long) count * INDEX_ENTRY_SIZE;
+            if (count > 0) {
+                writeFully(channel, ByteBuffer.allocate(1), end - 1);
+            }
+            return new MaskStore(file, channel, width, height, count, end);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens a store for reading
+     * @param file the store
+     * @return the open store
+     * @throws IOException if the file can't be read or isn't a mask store
+     */
+    public static MaskStore open(File file) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            channel.read(header, 0);
+            header.flip();
+            if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC) {
+                throw new IOException("Not a mask store: " + file);
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported mask store version " + version);
+            }
+            int width = header.getInt();
+            int height = header.getInt();
+            int count = header.getInt();
+            return new MaskStore(file, channel, width, height, count, channel.size());
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public int width() {
+        return width;
+    }
+
+    public int height() {
+        return height;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Encodes and appends a frame's mask
+     * @param frame the frame number
+     * @param mask binary mask of the store's size, anything but 0 is foreground
+     * @throws IOException if the file can't be written
+     */
+    public void write(int frame, Mat mask) throws IOException {
+        checkFrame(frame);
+        if (mask.cols() != width || mask.rows() != height || mask.type() != CvType.CV_8UC1) {
+            throw new IllegalArgumentException("Mask must be a " + width + "x" + height + " 8 bit single channel image");
+        }
+        ByteBuffer runs = encoders.get().encode(mask, width * height);
+        synchronized (this) {
+            long offset = end;
+            int size = runs.remaining();
+            writeFully(channel, runs, offset);
+            end += size;
+            writeIndex(frame, offset, size);
+        }
+    }
+
+    /**
+     * Points a frame at the mask of an earlier frame, for frames that kept its measurement
+     * @param frame the frame number
+     * @param source the earlier frame, already written
+     * @throws IOException if the file can't be written
+     */
+    public synchronized void carry(int frame, int source) throws IOException {
+        checkFrame(frame);
+        ByteBuffer entry = readIndex(source);
+        if (entry.getInt(8) == 0) {
+            throw new IllegalStateException("Frame " + source + " hasn't been written");
+        }
+        writeIndex(frame, entry.getLong(0), entry.getInt(8));
+    }
+
+    /**
+     * @return true if the frame has a mask
+     */
+    public boolean has(int frame) throws IOException {
+        checkFrame(frame);
+        return readIndex(frame).getInt(8) != 0;
+    }
+
+    /**
+     * Decodes a frame's mask
+     * @param frame the frame number
+     * @return the mask with foreground 255, owned by the caller, or null if it wasn't written
+     * @throws IOException if the file can't be read
+     */
+    public Mat read(int frame) throws IOException {
+        byte[] decoded = new byte[width * height];
+        if (decode(frame, decoded) < 0) {
+            return null;
+        }
+        Mat mask = new Mat(height, width, CvType.CV_8UC1);
+        mask.put(0, 0, decoded);
+        return mask;
+    }
+
+    /**
+     * Decodes a frame's mask into an array, without going through a {@link Mat}
+     * @param frame the frame number
+     * @param mask width * height bytes, filled with 0 and 255
+     * @return number of foreground pixels, or -1 if the frame has no mask
+     * @throws IOException if the file can't be read
+     */
+    public long decode(int frame, byte[] mask) throws IOException {
+        checkFrame(frame);
+        ByteBuffer entry = readIndex(frame);
+        int size = entry.getInt(8);
+        if (size == 0) {
+            return -1;
+        }
+        ByteBuffer encoded = ByteBuffer.allocate(size);
+        long position = entry.getLong(0);
+        while (encoded.hasRemaining()) {
+            if (channel.read(encoded, position + encoded.position()) < 0) {
+                throw new IOException("Mask store is truncated");
+            }
+        }
+        encoded.flip();
+
+        int length = width * height;
+        int i = 0;
+        long foregroundPixels = 0;
+        boolean foreground = false;
+        while (encoded.hasRemaining()) {
+            int run = getRun(encoded);
+            if (run > length - i) {
+                throw new IOException("Mask of frame " + frame + " is larger than " + width + "x" + height);
+            }
+            Arrays.fill(mask, i, i + run, foreground ? (byte) 255 : 0);
+            if (foreground) {
+                foregroundPixels += run;
+            }
+            i += run;
+            foreground = !foreground;
+        }
+        Arrays.fill(mask, i, length, (byte) 0);
+        return foregroundPixels;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Run length encodes masks, one per writing thread
+     */
+    private static class Encoder {
+        private byte[] pixels = new byte[0];
+        private ByteBuffer runs = ByteBuffer.allocate(0);
+
+        /**
+         * @return the runs of the mask, valid until this thread encodes the next one
+         */
+        ByteBuffer encode(Mat mask, int length) {
+            if (pixels.length != length) {
+                pixels = new byte[length];
+            }
+            // A submat can't be read in one get, copy it first
+            if (mask.isContinuous()) {
+                mask.get(0, 0, pixels);
+            } else {
+                Mat copy = mask.clone();
+                copy.get(0, 0, pixels);
+                copy.release();
+            }
+
+            runs.clear();
+            boolean foreground = false;
+            int run = 0;
+            for (int i = 0; i < length; i++) {
+                if ((pixels[i] != 0) != foreground) {
+                    putRun(run);
+                    foreground = !foreground;
+                    run = 0;
+                }
+                run++;
+            }
+            putRun(run);
+            runs.flip();
+            return runs;
+        }
+
+        private void putRun(int run) {
+            if (runs.remaining() < 5) {
+                ByteBuffer larger = ByteBuffer.allocate(Math.max(1024, runs.capacity() * 2));
+                runs.flip();
+                larger.put(runs);
+                runs = larger;
+            }
+            while ((run & ~0x7F) != 0) {
+                runs.put((byte) ((run & 0x7F) | 0x80));
+                run >>>= 7;
+            }
+            runs.put((byte) run);
+        }
+    }
+
+    private static int getRun(ByteBuffer encoded) throws IOException {
+        int run = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            if (!encoded.hasRemaining()) {
+                throw new IOException("Mask run is cut off");
+            }
+            byte b = encoded.get();
+            run |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return run;
+            }
+        }
+        throw new IOException("Mask run is too long");
+    }
+
+    private ByteBuffer readIndex(int frame) throws IOException {
+        ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+        long position = HEADER_SIZE + (long) frame * INDEX_ENTRY_SIZE;
+        while (entry.hasRemaining()) {
+            if (channel.read(entry, position + entry.position()) < 0) {
+                throw new IOException("Mask store is truncated");
+            }
+        }
+        return entry;
+    }
+
+    private void writeIndex(int frame, long offset, int size) throws IOException {
+        ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+        entry.putLong(offset).putInt(size);
+        entry.flip();
+        // Written after the runs so a reader never sees a half written mask
+        writeFully(channel, entry, HEADER_SIZE + (long) frame * INDEX_ENTRY_SIZE);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+
+    private void checkFrame(int frame) {
+        if (frame < 0 || frame >= count) {
+            throw new IndexOutOfBoundsException("Frame " + frame + " outside of mask store with " + count + " frames");
+        }
+    }
+}
@@ -0,0 +1,388 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+import processing.data.JSONArray;
+import processing.data.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MeasurementService class.
+ *
+ * <p>A local HTTP service that measures images the same way the analysis does, for tools that
+ * can't run the GUI. It only listens on the loopback address.
+ *
+ * <p>{@code POST /measure} takes either one request or {@code {"requests": [...]}} where a request is
+ * <pre>
+ *   {"path": "C:/images/img_001.jpg", "config": {...}, "width": 780, "height": 800}
+ * </pre>
+ * {@code "image"} with a base64 encoded image can be given instead of {@code "path"}. The config is
+ * read by {@link PipelineConfig#fromJSON(JSONObject)}. Width and height are optional and resize the
+ * image first, like the analysis resizes to the display size.
+ * {@code GET /health} answers {@code {"status": "ok"}}.
+ *
+ * <p>Requests from all connections go into one queue. A dispatcher groups whatever arrives within
+ * {@link #MAX_BATCH_DELAY_MILLIS} into a batch of up to {@link #MAX_BATCH} requests and splits it across
+ * a fixed pool of workers, each with its own {@link GripPipeline}. At most {@link #MAX_QUEUED} images
+ * wait or are measured at a time. A call that doesn't fit is answered with 503 as a whole, so a client
+ * sending faster than the workers measure is told to retry instead of filling the memory.
+ *
+ * <p>{@link #checkRoundTrip()} starts a service, posts a drawn frame to it over localhost and checks the answer.
+ */
+public class MeasurementService {
+
+    public static final int DEFAULT_PORT = 8765;
+    public static final int MAX_BATCH = 32;
+    public static final long MAX_BATCH_DELAY_MILLIS = 2;
+    public static final int MAX_QUEUED = 1024;
+
+    private final HttpServer server;
+    private final BlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+    // One per image queued or being measured, taken for a whole call at once
+    private final Semaphore capacity = new Semaphore(MAX_QUEUED);
+    private final ExecutorService workers;
+    private final BlockingQueue<GripPipeline> pipelines;
+    private final int workerCount;
+    private final Thread dispatcher;
+    private volatile boolean running;
+
+    /**
+     * @param port port to listen on, 0 picks a free one
+     * @param workerCount number of pipelines measuring in parallel
+     * @throws IOException if the port can't be bound
+     */
+    public MeasurementService(int port, int workerCount) throws IOException {
+        this.workerCount = workerCount;
+        this.workers = Executors.newFixedThreadPool(workerCount);
+        this.pipelines = new ArrayBlockingQueue<>(workerCount);
+        for (int i = 0; i < workerCount; i++) {
+            pipelines.add(new GripPipeline());
+        }
+
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/measure", this::handleMeasure);
+        server.createContext("/health", exchange -> {
+            JSONObject status = new JSONObject();
+            status.setString("status", "ok");
+            respond(exchange, 200, status.format(-1));
+        });
+        // Handler threads only wait on results, the measuring happens on the workers
+        server.setExecutor(Executors.newCachedThreadPool());
+
+        dispatcher = new Thread(this::dispatch, "measurement-dispatcher");
+        dispatcher.setDaemon(true);
+    }
+
+    public void start() {
+        running = true;
+        dispatcher.start();
+        server.start();
+    }
+
+    /**
+     * Stops listening. Images already handed to a worker are still measured, the ones still queued are
+     * answered with 503.
+     */
+    public void stop() {
+        running = false;
+        server.stop(0);
+        dispatcher.interrupt();
+        try {
+            dispatcher.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        List<Request> left = new ArrayList<>();
+        queue.drainTo(left);
+        for (Request request : left) {
+            request.result.cancel(false);
+        }
+        workers.shutdown();
+    }
+
+    /**
+     * @return the port the service is listening on
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    private void handleMeasure(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equalsIgnoreCase("POST")) {
+            respond(exchange, 405, error("Use POST").format(-1));
+            return;
+        }
+
+        List<Request> requests = new ArrayList<>();
+        boolean batch;
+        try {
+            JSONObject body = JSONObject.parse(readBody(exchange.getRequestBody()));
+            batch = body.hasKey("requests");
+            if (batch) {
+                JSONArray array = body.getJSONArray("requests");
+                for (int i = 0; i < array.size(); i++) {
+                    requests.add(parse(array.getJSONObject(i)));
+                }
+            } else {
+                requests.add(parse(body));
+            }
+        } catch (RuntimeException e) {
+            respond(exchange, 400, error("Invalid request: " + e.getMessage()).format(-1));
+            return;
+        }
+
+        if (requests.size() > MAX_QUEUED) {
+            respond(exchange, 400, error("At most " + MAX_QUEUED + " requests per call").format(-1));
+            return;
+        }
+        if (!capacity.tryAcquire(requests.size())) {
+            respond(exchange, 503, error("Too many images queued, try again later").format(-1));
+            return;
+        }
+        for (Request request : requests) {
+            request.result.whenComplete((result, error) -> capacity.release());
+        }
+        queue.addAll(requests);
+
+        JSONArray results = new JSONArray();
+        try {
+            for (Request request : requests) {
+                results.append(request.result.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            respond(exchange, 503, error("Service stopping").format(-1));
+            return;
+        } catch (CancellationException e) {
+            // Still queued when the service stopped
+            respond(exchange, 503, error("Service stopping").format(-1));
+            return;
+        } catch (ExecutionException e) {
+            respond(exchange, 500, error(String.valueOf(e.getCause())).format(-1));
+            return;
+        }
+
+        if (batch) {
+            JSONObject response = new JSONObject();
+            response.setJSONArray("results", results);
+            respond(exchange, 200, response.format(-1));
+        } else {
+            respond(exchange, 200, results.getJSONObject(0).format(-1));
+        }
+    }
+
+    private Request parse(JSONObject json) {
+        Request request = new Request();
+        if (json.hasKey("path")) {
+            request.path = json.getString("path");
+        } else if (json.hasKey("image")) {
+            request.image = Base64.getDecoder().decode(json.getString("image"));
+        } else {
+            throw new IllegalArgumentException("needs \"path\" or \"image\"");
+        }
+        request.config = json.hasKey("config") ? PipelineConfig.fromJSON(json.getJSONObject("config")) : PipelineConfig.DEFAULT;
+        if (json.hasKey("width") && json.hasKey("height")) {
+            request.size = new Size(json.getInt("width"), json.getInt("height"));
+        }
+        return request;
+    }
+
+    /**
+     * Groups queued requests into batches and hands them to the workers
+     */
+    private void dispatch() {
+        List<Request> batch = new ArrayList<>(MAX_BATCH);
+        while (running) {
+            try {
+                batch.add(queue.take());
+                // Give concurrent requests a moment to join the batch
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(MAX_BATCH_DELAY_MILLIS);
+                while (batch.size() < MAX_BATCH) {
+                    Request next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                    queue.drainTo(batch, MAX_BATCH - batch.size());
+                }
+            } catch (InterruptedException e) {
+                break;
+            }
+
+            // One chunk per worker
+            int chunkSize = (batch.size() + workerCount - 1) / workerCount;
+            for (int start = 0; start < batch.size(); start += chunkSize) {
+                List<Request> chunk = new ArrayList<>(batch.subList(start, Math.min(batch.size(), start + chunkSize)));
+                workers.execute(() -> measure(chunk));
+            }
+            batch.clear();
+        }
+    }
+
+    private void measure(List<Request> chunk) {
+        GripPipeline pipeline;
+        try {
+            pipeline = pipelines.take();
+        } catch (InterruptedException e) {
+            for (Request request : chunk) {
+                request.result.completeExceptionally(e);
+            }
+            return;
+        }
+
+        try {
+            for (Request request : chunk) {
+                try {
+                    request.result.complete(measure(pipeline, request));
+                } catch (RuntimeException e) {
+                    request.result.complete(error(e.toString()));
+                }
+            }
+        } finally {
+            pipelines.add(pipeline);
+        }
+    }
+
+    private JSONObject measure(GripPipeline pipeline, Request request) {
+        Mat image;
+        if (request.path != null) {
+            image = Imgcodecs.imread(request.path);
+        } else {
+            MatOfByte encoded = new MatOfByte(request.image);
+            image = Imgcodecs.imdecode(encoded, Imgcodecs.IMREAD_COLOR);
+            encoded.release();
+        }
+        if (image == null || image.empty()) {
+            return error("Unable to load image");
+        }
+        if (request.size != null) {
+            Imgproc.resize(image, image, request.size);
+        }
+
+        pipeline.process(image, request.config);
+        Blob blob = BlobFinder.largest(pipeline.cvDilateOutput());
+
+        JSONObject result = new JSONObject();
+        result.setInt("imageWidth", image.cols());
+        result.setInt("imageHeight", image.rows());
+        result.setBoolean("found", blob != null);
+        if (blob != null) {
+            result.setInt("x", blob.x);
+            result.setInt("y", blob.y);
+            result.setInt("width", blob.width);
+            result.setInt("height", blob.height);
+            result.setInt("highest", blob.highest());
+            result.setInt("lowest", blob.lowest());
+            result.setDouble("area", blob.area);
+        }
+        image.release();
+        return result;
+    }
+
+    /**
+     * Starts a service on a free port, posts a white rectangle on black as a base64 image over localhost
+     * and checks that the answer finds the rectangle
+     * @return true if the answer is right
+     * @throws IOException if the service can't be started or reached
+     */
+    public static boolean checkRoundTrip() throws IOException {
+        MeasurementService service = new MeasurementService(0, 1);
+        service.start();
+        try {
+            Mat frame = new Mat(200, 300, CvType.CV_8UC3, Scalar.all(0));
+            Imgproc.rectangle(frame, new Point(50, 40), new Point(149, 119), Scalar.all(255), Imgproc.FILLED);
+            MatOfByte png = new MatOfByte();
+            Imgcodecs.imencode(".png", frame, png);
+            frame.release();
+            JSONObject request = new JSONObject();
+            request.setString("image", Base64.getEncoder().encodeToString(png.toArray()));
+            request.setJSONObject("config", PipelineConfig.DEFAULT.withLum(128, 255).toJSON());
+            png.release();
+
+            HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + service.getPort() + "/measure").openConnection();
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/json");
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(request.format(-1).getBytes(StandardCharsets.UTF_8));
+            }
+            int status = connection.getResponseCode();
+            String body = readBody(status == 200 ? connection.getInputStream() : connection.getErrorStream());
+            connection.disconnect();
+            System.out.println("POST /measure answered " + status + ": " + body);
+
+            JSONObject result = JSONObject.parse(body);
+            // The default 3x3 erode and dilate give the filled rectangle back unchanged, it is away from the
+            // frame edge where the morphology border would move it. The pixel of slack is only a margin
+            return status == 200 && result.getBoolean("found", false)
+                    && Math.abs(result.getInt("x") - 50) <= 1 && Math.abs(result.getInt("width") - 100) <= 2
+                    && Math.abs(result.getInt("highest") - 40) <= 1 && Math.abs(result.getInt("lowest") - 120) <= 1;
+        } finally {
+            service.stop();
+        }
+    }
+
+    private static JSONObject error(String message) {
+        JSONObject error = new JSONObject();
+        error.setString("error", message);
+        return error;
+    }
+
+    private static String readBody(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * One image to measure and where its result goes
+     */
+    private static class Request {
+        String path;
+        byte[] image;
+        PipelineConfig config;
+        Size size;
+        final CompletableFuture<JSONObject> result = new CompletableFuture<>();
+    }
+}
@@ -0,0 +1,339 @@
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * MorphologySpec class.
+ *
+ * <p>An immutable sequence of morphology operations, e.g. {@code "open:rect:5,close:ellipse:7:2"}.
+ * Each operation is {@code operation:shape:size[:iterations]} with operation one of erode, dilate,
+ * open or close, shape one of rect, cross or ellipse and an odd size. Iterations work like they do in
+ * {@link Imgproc#morphologyEx}, an open with two iterations erodes twice then dilates twice.
+ *
+ * <p>The sequence is compiled into a plan of single erode and dilate steps that gives the same result
+ * with fewer passes:
+ * <ul>
+ *   <li>Repeating the same open does nothing more, so repeats are dropped.</li>
+ *   <li>1x1 kernels do nothing and are dropped.</li>
+ *   <li>Back to back erodes (or dilates) with rectangles become one pass with a larger rectangle.
+ *       OpenCV runs rectangles as separate row and column passes, so this is also cheap for large sizes.</li>
+ *   <li>Large crosses become a horizontal and a vertical line, each separable, combined with min or max.</li>
+ * </ul>
+ * All steps use the same constant border the pipeline has always used.
+ */
+public final class MorphologySpec {
+
+    /** One erode then one dilate with the default 3x3 rectangle, what the GRIP pipeline did */
+    public static final MorphologySpec DEFAULT = parse("erode:rect:3,dilate:rect:3");
+
+    // Crosses at least this big are split into two lines
+    private static final int CROSS_SPLIT_SIZE = 5;
+
+    public enum Operation { ERODE, DILATE, OPEN, CLOSE }
+
+    public enum Shape {
+        RECT(Imgproc.MORPH_RECT), CROSS(Imgproc.MORPH_CROSS), ELLIPSE(Imgproc.MORPH_ELLIPSE);
+
+        final int morphShape;
+
+        Shape(int morphShape) {
+            this.morphShape = morphShape;
+        }
+    }
+
+    /**
+     * One operation of the sequence
+     */
+    public static final class Op {
+        public final Operation operation;
+        public final Shape shape;
+        public final int size;
+        public final int iterations;
+
+        public Op(Operation operation, Shape shape, int size, int iterations) {
+            if (size < 1 || size % 2 == 0) {
+                throw new IllegalArgumentException("Kernel size must be odd and positive: " + size);
+            }
+            if (iterations < 1) {
+                throw new IllegalArgumentException("Iterations must be positive: " + iterations);
+            }
+            this.operation = operation;
+            this.shape = shape;
+            this.size = size;
+            this.iterations = iterations;
+        }
+
+        boolean sameAs(Op other) {
+            return operation == other.operation && shape == other.shape && size == other.size && iterations == other.iterations;
+        }
+
+        @Override
+        public String toString() {
+            String op = operation.name().toLowerCase() + ":" + shape.name().toLowerCase() + ":" + size;
+            return iterations == 1 ? op : op + ":" + iterations;
+        }
+    }
+
+    /**
+     * One erode or dilate pass of the compiled plan. A split step runs a horizontal and a vertical
+     * line and keeps the min (erode) or max (dilate) of the two.
+     */
+    public static final class Step {
+        public final boolean erode;
+        public final Shape shape;
+        public final int width, height;
+        public final boolean split;
+        // Created on first use, the OpenCV library may not be loaded yet when a spec is parsed
+        private volatile Mat kernel;
+        private volatile Mat verticalKernel;
+
+        private Step(boolean erode, Shape shape, int width, int height, boolean split) {
+            this.erode = erode;
+            this.shape = shape;
+            this.width = width;
+            this.height = height;
+            this.split = split;
+        }
+
+        /**
+         * @return the kernel, or the horizontal line of a split step
+         */
+        Mat kernel() {
+            Mat k = kernel;
+            if (k == null) {
+                k = split ? Imgproc.getStructuringElement(Imgproc.MORPH_RECT, new Size(width, 1))
+                        : Imgproc.getStructuringElement(shape.morphShape, new Size(width, height));
+                kernel = k;
+            }
+            return k;
+        }
+
+        /**
+         * @return the vertical line of a split step
+         */
+        Mat verticalKernel() {
+            Mat k = verticalKernel;
+            if (k == null) {
+                k = Imgproc.getStructuringElement(Imgproc.MORPH_RECT, new Size(1, height));
+                verticalKernel = k;
+            }
+            return k;
+        }
+
+        @Override
+        public String toString() {
+            return (erode ? "erode " : "dilate ") + shape.name().toLowerCase() + " " + width + "x" + height + (split ? " (split)" : "");
+        }
+    }
+
+    private final List<Op> ops;
+    private final List<Step> plan;
+
+    public MorphologySpec(List<Op> ops) {
+        this.ops = Collections.unmodifiableList(new ArrayList<>(ops));
+        this.plan = Collections.unmodifiableList(compile(this.ops));
+    }
+
+    /**
+     * Reads a sequence in the {@code operation:shape:size[:iterations],...} format.
+     * An empty string means no morphology at all.
+     * @param spec the sequence
+     * @return the parsed sequence
+     * @throws IllegalArgumentException if the sequence can't be read
+     */
+    public static MorphologySpec parse(String spec) {
+        List<Op> ops = new ArrayList<>();
+        for (String part : spec.split(",")) {
+            part = part.trim();
+            if (part.isEmpty()) {
+                continue;
+            }
+            String[] fields = part.split(":");
+            if (fields.length < 3 || fields.length > 4) {
+                throw new IllegalArgumentException("Expected operation:shape:size[:iterations] but got " + part);
+            }
+            Operation operation = Operation.valueOf(fields[0].trim().toUpperCase());
+            Shape shape = Shape.valueOf(fields[1].trim().toUpperCase());
+            int size = Integer.parseInt(fields[2].trim());
+            int iterations = fields.length == 4 ? Integer.parseInt(fields[3].trim()) : 1;
+            ops.add(new Op(operation, shape, size, iterations));
+        }
+        return new MorphologySpec(ops);
+    }
+
+    public List<Op> ops() {
+        return ops;
+    }
+
+    /**
+     * @return the compiled erode and dilate steps
+     */
+    public List<Step> plan() {
+        return plan;
+    }
+
+    /**
+     * How far away an input pixel can still change an output pixel
+     * @return the radius in pixels
+     */
+    public int radius() {
+        int radius = 0;
+        for (Step step : plan) {
+            radius += Math.max(step.width, step.height) / 2;
+        }
+        return radius;
+    }
+
+    /**
+     * The same sequence for an image scaled by a factor, each kernel radius scaled and rounded.
+     * Kernels that shrink below 3 pixels are dropped by the plan.
+     * @param factor e.g. 0.25 for an image a quarter of the size
+     * @return the scaled sequence
+     */
+    public MorphologySpec scaled(double factor) {
+        List<Op> scaledOps = new ArrayList<>(ops.size());
+        for (Op op : ops) {
+            int radius = (int) Math.round(op.size / 2 * factor);
+            scaledOps.add(new Op(op.operation, op.shape, radius * 2 + 1, op.iterations));
+        }
+        return new MorphologySpec(scaledOps);
+    }
+
+    /**
+     * @return the compiled plan in a readable form
+     */
+    public String describePlan() {
+        return plan.isEmpty() ? "none" : plan.toString();
+    }
+
+    /**
+     * Runs the plan, the first step from src to dst and the rest in place on dst
+     * @param src the mask to clean up, not changed
+     * @param dst the cleaned up mask, must not be src
+     * @param line scratch image for the horizontal line of split steps
+     */
+    public void apply(Mat src, Mat dst, Mat line) {
+        apply(src, dst, line, null);
+    }
+
+    /**
+     * Runs the plan on several frames side by side, as if each was cleaned up on its own
+     * @param src the mask to clean up, not changed
+     * @param dst the cleaned up mask, must not be src
+     * @param line scratch image for the horizontal line of split steps
+     * @param separators strips between the frames, cleared before every step and in dst, or null
+     */
+    public void apply(Mat src, Mat dst, Mat line, Mat separators) {
+        // The constant border of -1 saturates to 0
+        Scalar border = new Scalar(0);
+        Mat input = src;
+        if (plan.isEmpty() || separators != null) {
+            src.copyTo(dst);
+            input = dst;
+        }
+        Point anchor = new Point(-1, -1);
+        int borderType = Core.BORDER_CONSTANT;
+        Scalar borderValue = new Scalar(-1);
+
+        for (Step step : plan) {
+            if (separators != null) {
+                // Each frame sees the same border as on its own
+                input.setTo(border, separators);
+            }
+            if (step.split) {
+                // The line is taken before dst is overwritten, dst may be the input
+                if (step.erode) {
+                    Imgproc.erode(input, line, step.kernel(), anchor, 1, borderType, borderValue);
+                    Imgproc.erode(input, dst, step.verticalKernel(), anchor, 1, borderType, borderValue);
+                    Core.min(line, dst, dst);
+                } else {
+                    Imgproc.dilate(input, line, step.kernel(), anchor, 1, borderType, borderValue);
+                    Imgproc.dilate(input, dst, step.verticalKernel(), anchor, 1, borderType, borderValue);
+                    Core.max(line, dst, dst);
+                }
+            } else if (step.erode) {
+                Imgproc.erode(input, dst, step.kernel(), anchor, 1, borderType, borderValue);
+            } else {
+                Imgproc.dilate(input, dst, step.kernel(), anchor, 1, borderType, borderValue);
+            }
+            input = dst;
+        }
+        if (separators != null) {
+            dst.setTo(border, separators);
+        }
+    }
+
+    private static List<Step> compile(List<Op> ops) {
+        // Expand into single erodes and dilates, dropping repeated opens
+        List<Op> primitives = new ArrayList<>();
+        Op previous = null;
+        for (Op op : ops) {
+            if (op.operation == Operation.OPEN && previous != null && op.sameAs(previous)) {
+                continue;
+            }
+            previous = op;
+            switch (op.operation) {
+                case ERODE:
+                case DILATE:
+                    repeat(primitives, op.operation, op, op.iterations);
+                    break;
+                case OPEN:
+                    repeat(primitives, Operation.ERODE, op, op.iterations);
+                    repeat(primitives, Operation.DILATE, op, op.iterations);
+                    break;
+                case CLOSE:
+                    repeat(primitives, Operation.DILATE, op, op.iterations);
+                    repeat(primitives, Operation.ERODE, op, op.iterations);
+                    break;
+            }
+        }
+
+        List<Step> steps = new ArrayList<>();
+        int i = 0;
+        while (i < primitives.size()) {
+            Op op = primitives.get(i);
+            i++;
+            if (op.size == 1) {
+                continue;
+            }
+            boolean erode = op.operation == Operation.ERODE;
+            if (op.shape == Shape.RECT) {
+                // Fuse the run of rectangles, two passes of a and b equal one pass of a + b - 1
+                int size = op.size;
+                while (i < primitives.size() && primitives.get(i).shape == Shape.RECT && primitives.get(i).operation == op.operation) {
+                    size += primitives.get(i).size - 1;
+                    i++;
+                }
+                steps.add(new Step(erode, Shape.RECT, size, size, false));
+            } else {
+                steps.add(new Step(erode, op.shape, op.size, op.size, op.shape == Shape.CROSS && op.size >= CROSS_SPLIT_SIZE));
+            }
+        }
+        return steps;
+    }
+
+    private static void repeat(List<Op> primitives, Operation operation, Op op, int times) {
+        for (int i = 0; i < times; i++) {
+            primitives.add(new Op(operation, op.shape, op.size, 1));
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder spec = new StringBuilder();
+        for (Op op : ops) {
+            if (spec.length() > 0) {
+                spec.append(',');
+            }
+            spec.append(op);
+        }
+        return spec.toString();
+    }
+}
@@ -0,0 +1,200 @@
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.imgproc.Moments;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * MosaicProcessor class.
+ *
+ * <p>Measures the largest blob of many small frames at once. The frames are copied side by side into
+ * one mosaic, which goes through the pipeline and the contour search in one set of calls instead of one
+ * set per frame, so the fixed cost of every call is shared by the whole batch.
+ *
+ * <p>The frames are kept apart by black strips as wide as the pipeline's halo. Before every morphology
+ * step the strips are set back to the border value a single frame sees, so no step reaches from one
+ * frame into the next and every frame's mask is the same as when it is processed on its own. The
+ * strips are empty in the final mask, so no contour crosses them. Outside the ROI each frame is made
+ * black, which is what the pipeline's own ROI does. Not thread safe.
+ */
+public class MosaicProcessor {
+
+    public static final int DEFAULT_BATCH_SIZE = 16;
+
+    private final int batchSize;
+    private final GripPipeline pipeline = new GripPipeline();
+    private final Mat mosaic = new Mat();
+    // Strips between the frames
+    private final Mat separators = new Mat();
+    // Strips and everything outside the ROI of each frame
+    private final Mat blank = new Mat();
+
+    // Layout the masks were made for
+    private int frameWidth, frameHeight, pad, columns;
+    private PipelineConfig blankConfig;
+
+    /**
+     * @param batchSize most frames in one mosaic, at least 1
+     */
+    public MosaicProcessor(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1: " + batchSize);
+        }
+        this.batchSize = batchSize;
+    }
+
+    public int batchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Finds the largest blob of every frame
+     * @param frames at most batchSize frames, all BGR and the same size
+     * @param config the values, ROI in frame coordinates
+     * @return the largest blob of each frame in frame coordinates, null for frames where nothing was found
+     */
+    public Blob[] process(List<Mat> frames, PipelineConfig config) {
+        if (frames.size() > batchSize) {
+            throw new IllegalArgumentException(frames.size() + " frames don't fit a batch of " + batchSize);
+        }
+        if (frames.isEmpty()) {
+            return new Blob[0];
+        }
+        layout(frames.get(0).cols(), frames.get(0).rows(), config);
+
+        for (int i = 0; i < frames.size(); i++) {
+            Mat frame = frames.get(i);
+            if (frame.cols() != frameWidth || frame.rows() != frameHeight) {
+                throw new IllegalArgumentException("Frame " + i + " is " + frame.cols() + "x" + frame.rows()
+                        + ", the batch is " + frameWidth + "x" + frameHeight);
+            }
+            Mat cell = mosaic.submat(cell(i));
+            frame.copyTo(cell);
+            cell.release();
+        }
+        mosaic.setTo(Scalar.all(0), blank);
+        pipeline.process(mosaic, config.withoutROI(), separators);
+        return measure(pipeline.output(), frames.size());
+    }
+
+    /**
+     * The final mask of a frame of the last batch
+     * @param i position of the frame in the batch
+     * @return a view into the pipeline's output, valid until the next batch
+     */
+    public Mat mask(int i) {
+        return pipeline.output().submat(cell(i));
+    }
+
+    /**
+     * Sizes the mosaic and its masks, only when the frame size, halo or ROI changed
+     */
+    private void layout(int width, int height, PipelineConfig config) {
+        int halo = Math.max(1, GripPipeline.haloRadius(config));
+        boolean resized = width != frameWidth || height != frameHeight || halo != pad;
+        if (resized) {
+            frameWidth = width;
+            frameHeight = height;
+            pad = halo;
+            columns = (int) Math.ceil(Math.sqrt(batchSize));
+            int rows = (batchSize + columns - 1) / columns;
+            int mosaicWidth = columns * frameWidth + (columns - 1) * pad;
+            int mosaicHeight = rows * frameHeight + (rows - 1) * pad;
+            mosaic.create(mosaicHeight, mosaicWidth, CvType.CV_8UC3);
+            mosaic.setTo(Scalar.all(0));
+            separators.create(mosaicHeight, mosaicWidth, CvType.CV_8UC1);
+            separators.setTo(Scalar.all(255));
+            for (int i = 0; i < columns * rows; i++) {
+                Mat cell = separators.submat(cell(i));
+                cell.setTo(Scalar.all(0));
+                cell.release();
+            }
+        }
+        if (resized || !sameROI(config, blankConfig)) {
+            separators.copyTo(blank);
+            if (config.roi) {
+                Rect roi = GripPipeline.roiRect(config, frameWidth, frameHeight);
+                for (int i = 0; i < batchSize; i++) {
+                    Rect cell = cell(i);
+                    Mat area = blank.submat(cell);
+                    area.setTo(Scalar.all(255));
+                    if (roi != null) {
+                        Mat inside = area.submat(roi);
+                        inside.setTo(Scalar.all(0));
+                        inside.release();
+                    }
+                    area.release();
+                }
+            }
+            blankConfig = config;
+        }
+    }
+
+    private static boolean sameROI(PipelineConfig a, PipelineConfig b) {
+        if (b == null || a.roi != b.roi) {
+            return false;
+        }
+        return !a.roi || (a.roiTopX == b.roiTopX && a.roiTopY == b.roiTopY
+                && a.roiBottomX == b.roiBottomX && a.roiBottomY == b.roiBottomY);
+    }
+
+    private Rect cell(int i) {
+        return new Rect((i % columns) * (frameWidth + pad), (i / columns) * (frameHeight + pad), frameWidth, frameHeight);
+    }
+
+    /**
+     * Finds the contours of the whole mask once and keeps the largest of each frame, like {@link BlobFinder#largest(Mat)}
+     */
+    private Blob[] measure(Mat mask, int count) {
+        ArrayList<MatOfPoint> contours = new ArrayList<>();
+        Mat hierarchy = new Mat();
+        Imgproc.findContours(mask, contours, hierarchy, Imgproc.RETR_TREE, Imgproc.CHAIN_APPROX_NONE);
+        hierarchy.release();
+
+        MatOfPoint[] largest = new MatOfPoint[count];
+        double[] largestArea = new double[count];
+        Rect[] largestRect = new Rect[count];
+        for (MatOfPoint contour : contours) {
+            Rect rect = Imgproc.boundingRect(contour);
+            // The strips keep every contour inside one frame
+            int frame = (rect.y / (frameHeight + pad)) * columns + rect.x / (frameWidth + pad);
+            if (frame >= count) {
+                continue;
+            }
+            double area = Imgproc.contourArea(contour);
+            if (largest[frame] == null || area > largestArea[frame]) {
+                largest[frame] = contour;
+                largestArea[frame] = area;
+                largestRect[frame] = rect;
+            }
+        }
+
+        Blob[] blobs = new Blob[count];
+        for (int i = 0; i < count; i++) {
+            if (largest[i] == null) {
+                continue;
+            }
+            Rect cell = cell(i);
+            Rect rect = largestRect[i];
+            Moments moments = Imgproc.moments(largest[i]);
+            double centroidX = rect.x + rect.width / 2.0;
+            double centroidY = rect.y + rect.height / 2.0;
+            if (moments.get_m00() != 0) {
+                centroidX = moments.get_m10() / moments.get_m00();
+                centroidY = moments.get_m01() / moments.get_m00();
+            }
+            blobs[i] = new Blob(rect.x - cell.x, rect.y - cell.y, rect.width, rect.height, largestArea[i],
+                    centroidX - cell.x, centroidY - cell.y);
+        }
+
+        for (MatOfPoint contour : contours) {
+            contour.release();
+        }
+        return blobs;
+    }
+}
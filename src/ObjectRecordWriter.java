@@ -0,0 +1,111 @@
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.DecimalFormat;
+import java.util.List;
+
+/**
+ * ObjectRecordWriter class.
+ *
+ * <p>Streams one CSV row per object when several objects are measured per frame. Rows are written as
+ * frames finish, so nothing is collected in memory however many objects a run finds:
+ * <pre>
+ *   Filename,Elapsed Time (sec),Object,X,Y,Width,Height,Area (px),Centroid X,Centroid Y
+ * </pre>
+ * Objects are numbered from 1 within their frame. Frames without objects have no rows. When frames can
+ * keep the objects of an earlier frame, see {@link ChangeDetector}, a Carried column tells which rows
+ * were measured and which were repeated.
+ */
+public class ObjectRecordWriter implements Closeable {
+
+    private final File file;
+    private final Writer out;
+    private final DecimalFormat df = new DecimalFormat("#.###");
+    private final StringBuilder line = new StringBuilder(128);
+    private final boolean carriedColumn;
+    private long objects;
+
+    private ObjectRecordWriter(File file, Writer out, boolean carriedColumn) {
+        this.file = file;
+        this.out = out;
+        this.carriedColumn = carriedColumn;
+    }
+
+    /**
+     * Creates the CSV file and writes the header
+     * @param file the file to create, any existing file is replaced
+     * @param carriedColumn whether frames can repeat the objects of an earlier frame
+     * @return the open writer
+     * @throws IOException if the file can't be created
+     */
+    public static ObjectRecordWriter create(File file, boolean carriedColumn) throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8), 1 << 16);
+        out.write("Filename,Elapsed Time (sec),Object,X,Y,Width,Height,Area (px),Centroid X,Centroid Y"
+                + (carriedColumn ? ",Carried" : "") + "\n");
+        return new ObjectRecordWriter(file, out, carriedColumn);
+    }
+
+    /**
+     * Writes the objects of one measured frame
+     * @param filename filename of the frame
+     * @param elapsed elapsed time of the frame in seconds
+     * @param blobs the objects found in the frame
+     * @throws IOException if the file can't be written
+     */
+    public void write(String filename, double elapsed, List<Blob> blobs) throws IOException {
+        write(filename, elapsed, blobs, false);
+    }
+
+    /**
+     * Writes the objects of one frame
+     * @param filename filename of the frame
+     * @param elapsed elapsed time of the frame in seconds
+     * @param blobs the objects found in the frame, or in the earlier frame it repeats
+     * @param carried whether the frame repeats the objects of an earlier frame
+     * @throws IOException if the file can't be written
+     */
+    public synchronized void write(String filename, double elapsed, List<Blob> blobs, boolean carried) throws IOException {
+        for (int i = 0; i < blobs.size(); i++) {
+            Blob blob = blobs.get(i);
+            line.setLength(0);
+            ResultStoreReader.appendCsv(line, filename).append(',');
+            line.append(df.format(elapsed)).append(',');
+            line.append(i + 1).append(',');
+            line.append(blob.x).append(',').append(blob.y).append(',');
+            line.append(blob.width).append(',').append(blob.height).append(',');
+            line.append(df.format(blob.area)).append(',');
+            line.append(df.format(blob.centroidX)).append(',').append(df.format(blob.centroidY));
+            if (carriedColumn) {
+                line.append(',').append(carried ? "yes" : "no");
+            }
+            line.append('\n');
+            out.append(line);
+        }
+        objects += blobs.size();
+    }
+
+    /**
+     * @return number of objects written so far
+     */
+    public synchronized long objectCount() {
+        return objects;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+}
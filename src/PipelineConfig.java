@@ -0,0 +1,356 @@
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import processing.data.JSONArray;
+import processing.data.JSONObject;
+
+/**
+ * PipelineConfig class.
+ *
+ * <p>An immutable snapshot of everything that controls {@link GripPipeline}: the threshold bounds,
+ * the threshold mode, the morphology and the ROI. Changes create a new snapshot, so a snapshot read once at the
+ * start of a frame stays consistent for the whole frame and can be shared between threads freely.
+ */
+public final class PipelineConfig {
+
+    public static final PipelineConfig DEFAULT = builder().build();
+
+    // HSL bounds
+    public final double hueLow, hueHigh;
+    public final double satLow, satHigh;
+    public final double lumLow, lumHigh;
+
+    // RGB bounds
+    public final double redLow, redHigh;
+    public final double greenLow, greenHigh;
+    public final double blueLow, blueHigh;
+
+    public final boolean hsl;
+
+    // Cleanup of the thresholded mask
+    public final MorphologySpec morphology;
+
+    // ROI corners, only used if roi is true
+    public final boolean roi;
+    public final double roiTopX, roiTopY;
+    public final double roiBottomX, roiBottomY;
+
+    private PipelineConfig(Builder b) {
+        hueLow = b.hueLow;
+        hueHigh = b.hueHigh;
+        satLow = b.satLow;
+        satHigh = b.satHigh;
+        lumLow = b.lumLow;
+        lumHigh = b.lumHigh;
+        redLow = b.redLow;
+        redHigh = b.redHigh;
+        greenLow = b.greenLow;
+        greenHigh = b.greenHigh;
+        blueLow = b.blueLow;
+        blueHigh = b.blueHigh;
+        hsl = b.hsl;
+        morphology = b.morphology;
+        roi = b.roi;
+        roiTopX = b.roiTopX;
+        roiTopY = b.roiTopY;
+        roiBottomX = b.roiBottomX;
+        roiBottomY = b.roiBottomY;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * @return a builder starting from this snapshot's values
+     */
+    public Builder toBuilder() {
+        return new Builder(this);
+    }
+
+    public PipelineConfig withHue(double low, double high) {
+        return toBuilder().hue(low, high).build();
+    }
+
+    public PipelineConfig withSat(double low, double high) {
+        return toBuilder().sat(low, high).build();
+    }
+
+    public PipelineConfig withLum(double low, double high) {
+        return toBuilder().lum(low, high).build();
+    }
+
+    public PipelineConfig withRed(double low, double high) {
+        return toBuilder().red(low, high).build();
+    }
+
+    public PipelineConfig withGreen(double low, double high) {
+        return toBuilder().green(low, high).build();
+    }
+
+    public PipelineConfig withBlue(double low, double high) {
+        return toBuilder().blue(low, high).build();
+    }
+
+    public PipelineConfig withHsl(boolean hsl) {
+        return toBuilder().hsl(hsl).build();
+    }
+
+    public PipelineConfig withMorphology(MorphologySpec morphology) {
+        return toBuilder().morphology(morphology).build();
+    }
+
+    public PipelineConfig withROI(Point topCorner, Point bottomCorner) {
+        return toBuilder().roi(topCorner, bottomCorner).build();
+    }
+
+    public PipelineConfig withoutROI() {
+        return toBuilder().noRoi().build();
+    }
+
+    /**
+     * Maps the ROI into another coordinate system, e.g. a scaled image or a tile of the image.
+     * The corners become {@code corner * scale + offset}.
+     * @return the snapshot with the mapped ROI, or this snapshot if there is no ROI
+     */
+    public PipelineConfig transformROI(double scaleX, double scaleY, double offsetX, double offsetY) {
+        if (!roi) {
+            return this;
+        }
+        return toBuilder().roi(
+                new Point(roiTopX * scaleX + offsetX, roiTopY * scaleY + offsetY),
+                new Point(roiBottomX * scaleX + offsetX, roiBottomY * scaleY + offsetY)).build();
+    }
+
+    public Point roiTopCorner() {
+        return new Point(roiTopX, roiTopY);
+    }
+
+    public Point roiBottomCorner() {
+        return new Point(roiBottomX, roiBottomY);
+    }
+
+    /**
+     * @return lower bound for inRange on an HLS image
+     */
+    public Scalar hslLower() {
+        return new Scalar(hueLow, lumLow, satLow);
+    }
+
+    /**
+     * @return upper bound for inRange on an HLS image
+     */
+    public Scalar hslUpper() {
+        return new Scalar(hueHigh, lumHigh, satHigh);
+    }
+
+    /**
+     * @return lower bound for inRange on an RGB image
+     */
+    public Scalar rgbLower() {
+        return new Scalar(redLow, greenLow, blueLow);
+    }
+
+    /**
+     * @return upper bound for inRange on an RGB image
+     */
+    public Scalar rgbUpper() {
+        return new Scalar(redHigh, greenHigh, blueHigh);
+    }
+
+    /**
+     * Reads a snapshot from JSON, e.g.
+     * <pre>
+     *   {"mode": "hsl", "hue": [0, 180], "sat": [0, 255], "lum": [0, 255], "roi": [x0, y0, x1, y1],
+     *    "morphology": "open:rect:5"}
+     * </pre>
+     * Missing keys keep their default value. The morphology format is described in {@link MorphologySpec}.
+     * @param json the JSON object
+     * @return the snapshot
+     */
+    public static PipelineConfig fromJSON(JSONObject json) {
+        Builder b = builder();
+        if (json.hasKey("mode")) {
+            b.hsl(!json.getString("mode").equalsIgnoreCase("rgb"));
+        }
+        double[] hue = range(json, "hue", 2);
+        if (hue != null) {
+            b.hue(hue[0], hue[1]);
+        }
+        double[] sat = range(json, "sat", 2);
+        if (sat != null) {
+            b.sat(sat[0], sat[1]);
+        }
+        double[] lum = range(json, "lum", 2);
+        if (lum != null) {
+            b.lum(lum[0], lum[1]);
+        }
+        double[] red = range(json, "red", 2);
+        if (red != null) {
+            b.red(red[0], red[1]);
+        }
+        double[] green = range(json, "green", 2);
+        if (green != null) {
+            b.green(green[0], green[1]);
+        }
+        double[] blue = range(json, "blue", 2);
+        if (blue != null) {
+            b.blue(blue[0], blue[1]);
+        }
+        if (json.hasKey("morphology")) {
+            b.morphology(MorphologySpec.parse(json.getString("morphology")));
+        }
+        double[] roi = range(json, "roi", 4);
+        if (roi != null) {
+            b.roi(new Point(roi[0], roi[1]), new Point(roi[2], roi[3]));
+        }
+        return b.build();
+    }
+
+    private static double[] range(JSONObject json, String key, int length) {
+        if (!json.hasKey(key) || json.isNull(key)) {
+            return null;
+        }
+        JSONArray array = json.getJSONArray(key);
+        if (array.size() != length) {
+            throw new IllegalArgumentException("\"" + key + "\" needs " + length + " values");
+        }
+        double[] values = new double[length];
+        for (int i = 0; i < length; i++) {
+            values[i] = array.getDouble(i);
+        }
+        return values;
+    }
+
+    /**
+     * Writes the snapshot in the format read by {@link #fromJSON(JSONObject)}
+     * @return the JSON object
+     */
+    public JSONObject toJSON() {
+        JSONObject json = new JSONObject();
+        json.setString("mode", hsl ? "hsl" : "rgb");
+        json.setJSONArray("hue", array(hueLow, hueHigh));
+        json.setJSONArray("sat", array(satLow, satHigh));
+        json.setJSONArray("lum", array(lumLow, lumHigh));
+        json.setJSONArray("red", array(redLow, redHigh));
+        json.setJSONArray("green", array(greenLow, greenHigh));
+        json.setJSONArray("blue", array(blueLow, blueHigh));
+        json.setString("morphology", morphology.toString());
+        if (roi) {
+            json.setJSONArray("roi", array(roiTopX, roiTopY, roiBottomX, roiBottomY));
+        }
+        return json;
+    }
+
+    private static JSONArray array(double... values) {
+        JSONArray array = new JSONArray();
+        for (double value : values) {
+            array.append(value);
+        }
+        return array;
+    }
+
+    /**
+     * Mutable builder for {@link PipelineConfig}. Defaults to the full ranges, HSL, the default morphology and no ROI.
+     */
+    public static class Builder {
+        private double hueLow = 0, hueHigh = 180;
+        private double satLow = 0, satHigh = 255;
+        private double lumLow = 0, lumHigh = 255;
+        private double redLow = 0, redHigh = 255;
+        private double greenLow = 0, greenHigh = 255;
+        private double blueLow = 0, blueHigh = 255;
+        private boolean hsl = true;
+        private MorphologySpec morphology = MorphologySpec.DEFAULT;
+        private boolean roi = false;
+        private double roiTopX, roiTopY, roiBottomX, roiBottomY;
+
+        private Builder() {
+        }
+
+        private Builder(PipelineConfig c) {
+            hueLow = c.hueLow;
+            hueHigh = c.hueHigh;
+            satLow = c.satLow;
+            satHigh = c.satHigh;
+            lumLow = c.lumLow;
+            lumHigh = c.lumHigh;
+            redLow = c.redLow;
+            redHigh = c.redHigh;
+            greenLow = c.greenLow;
+            greenHigh = c.greenHigh;
+            blueLow = c.blueLow;
+            blueHigh = c.blueHigh;
+            hsl = c.hsl;
+            morphology = c.morphology;
+            roi = c.roi;
+            roiTopX = c.roiTopX;
+            roiTopY = c.roiTopY;
+            roiBottomX = c.roiBottomX;
+            roiBottomY = c.roiBottomY;
+        }
+
+        public Builder hue(double low, double high) {
+            hueLow = low;
+            hueHigh = high;
+            return this;
+        }
+
+        public Builder sat(double low, double high) {
+            satLow = low;
+            satHigh = high;
+            return this;
+        }
+
+        public Builder lum(double low, double high) {
+            lumLow = low;
+            lumHigh = high;
+            return this;
+        }
+
+        public Builder red(double low, double high) {
+            redLow = low;
+            redHigh = high;
+            return this;
+        }
+
+        public Builder green(double low, double high) {
+            greenLow = low;
+            greenHigh = high;
+            return this;
+        }
+
+        public Builder blue(double low, double high) {
+            blueLow = low;
+            blueHigh = high;
+            return this;
+        }
+
+        public Builder hsl(boolean hsl) {
+            this.hsl = hsl;
+            return this;
+        }
+
+        public Builder morphology(MorphologySpec morphology) {
+            this.morphology = morphology;
+            return this;
+        }
+
+        public Builder roi(Point topCorner, Point bottomCorner) {
+            roi = true;
+            roiTopX = topCorner.x;
+            roiTopY = topCorner.y;
+            roiBottomX = bottomCorner.x;
+            roiBottomY = bottomCorner.y;
+            return this;
+        }
+
+        public Builder noRoi() {
+            roi = false;
+            return this;
+        }
+
+        public PipelineConfig build() {
+            return new PipelineConfig(this);
+        }
+    }
+}
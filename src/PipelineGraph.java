@@ -0,0 +1,364 @@
+import org.opencv.imgproc.Imgproc;
+import processing.data.JSONArray;
+import processing.data.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * PipelineGraph class.
+ *
+ * <p>A pipeline described in a JSON file instead of Java, e.g.
+ * <pre>
+ * {
+ *   "stages": [
+ *     {"id": "roi",   "op": "roi",            "input": "source", "rect": "config"},
+ *     {"id": "mask",  "op": "colorThreshold", "input": "roi"},
+ *     {"id": "clean", "op": "morphology",     "input": "mask",   "spec": "config"}
+ *   ],
+ *   "output": "clean"
+ * }
+ * </pre>
+ * Stages name their inputs by id, {@code "source"} is the frame. Stages can be listed in any order,
+ * stages the output doesn't depend on are dropped. The ops are
+ * <ul>
+ *   <li>{@code blur} - Gaussian blur, {@code "size"} and {@code "sigma"}</li>
+ *   <li>{@code cvtColor} - {@code "code"} one of BGR2HLS, BGR2HSV, BGR2GRAY, BGR2RGB</li>
+ *   <li>{@code inRange} - fixed {@code "lower"} and {@code "upper"} bounds</li>
+ *   <li>{@code colorThreshold} - HSL or RGB threshold with the bounds from the GUI</li>
+ *   <li>{@code morphology} - {@code "spec"} in the {@link MorphologySpec} format, or "config" for the configured one</li>
+ *   <li>{@code roi} - clears everything outside {@code "rect": [x0, y0, x1, y1]}, or "config" for the selected ROI</li>
+ *   <li>{@code and}, {@code or}, {@code xor}, {@code absdiff} - two {@code "inputs"}</li>
+ *   <li>{@code not}</li>
+ * </ul>
+ *
+ * <p>Compiling plans the buffers: stages run in dependency order and a stage's output goes into a
+ * buffer of the same type no longer needed by any later stage. Pixel by pixel ops may even write over
+ * their own input. A buffer only ever holds one type, 3 channel images or 1 channel masks, so OpenCV
+ * never has to reallocate it between frames. The number of buffers is the most intermediates of each
+ * type alive at once, not the number of stages.
+ */
+public class PipelineGraph {
+
+    public static final String SOURCE = "source";
+    // Channels of the BGR frames, every stage output is 8 bit with 1 or 3 channels
+    static final int SOURCE_CHANNELS = 3;
+
+    enum Op {
+        BLUR("blur", 1, false),
+        CVT_COLOR("cvtColor", 1, false),
+        IN_RANGE("inRange", 1, true),
+        COLOR_THRESHOLD("colorThreshold", 1, false),
+        MORPHOLOGY("morphology", 1, false),
+        ROI("roi", 1, true),
+        AND("and", 2, true),
+        OR("or", 2, true),
+        XOR("xor", 2, true),
+        ABSDIFF("absdiff", 2, true),
+        NOT("not", 1, true);
+
+        final String name;
+        final int inputs;
+        // Output may share a buffer with an input
+        final boolean inPlace;
+
+        Op(String name, int inputs, boolean inPlace) {
+            this.name = name;
+            this.inputs = inputs;
+            this.inPlace = inPlace;
+        }
+
+        /**
+         * @param stage the stage running this op
+         * @param inputChannels channels of the stage's first input
+         * @return channels of the stage's output
+         */
+        int outputChannels(Stage stage, int inputChannels) {
+            switch (this) {
+                case CVT_COLOR:
+                    return stage.code == Imgproc.COLOR_BGR2GRAY ? 1 : 3;
+                case IN_RANGE:
+                case COLOR_THRESHOLD:
+                    return 1;
+                default:
+                    return inputChannels;
+            }
+        }
+
+        static Op named(String name) {
+            for (Op op : values()) {
+                if (op.name.equalsIgnoreCase(name)) {
+                    return op;
+                }
+            }
+            throw new IllegalArgumentException("Unknown op \"" + name + "\"");
+        }
+    }
+
+    /**
+     * One stage with its parameters read from the file
+     */
+    static final class Stage {
+        final String id;
+        final Op op;
+        final String[] inputs;
+
+        // Parameters, only the ones of the op are set
+        int size;
+        double sigma;
+        int code;
+        double[] lower, upper;
+        MorphologySpec spec;  // null means the configured one
+        double[] rect;        // null means the selected ROI
+
+        Stage(String id, Op op, String[] inputs) {
+            this.id = id;
+            this.op = op;
+            this.inputs = inputs;
+        }
+    }
+
+    private final Map<String, Stage> stages;
+    private final String output;
+
+    private PipelineGraph(Map<String, Stage> stages, String output) {
+        this.stages = stages;
+        this.output = output;
+    }
+
+    /**
+     * Loads a graph from a JSON file
+     * @param file the file
+     * @return the graph
+     * @throws IOException if the file can't be read
+     * @throws IllegalArgumentException if the graph is invalid
+     */
+    public static PipelineGraph load(File file) throws IOException {
+        try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+            return fromJSON(new JSONObject(reader));
+        }
+    }
+
+    /**
+     * Reads a graph in the format above
+     * @param json the JSON object
+     * @return the graph
+     * @throws IllegalArgumentException if the graph is invalid
+     */
+    public static PipelineGraph fromJSON(JSONObject json) {
+        Map<String, Stage> stages = new LinkedHashMap<>();
+        JSONArray array = json.getJSONArray("stages");
+        for (int i = 0; i < array.size(); i++) {
+            Stage stage = parseStage(array.getJSONObject(i));
+            if (stage.id.equals(SOURCE) || stages.containsKey(stage.id)) {
+                throw new IllegalArgumentException("Stage id \"" + stage.id + "\" is used twice");
+            }
+            stages.put(stage.id, stage);
+        }
+        String output = json.getString("output");
+        if (!stages.containsKey(output)) {
+            throw new IllegalArgumentException("Output \"" + output + "\" is not a stage");
+        }
+        PipelineGraph graph = new PipelineGraph(stages, output);
+        // Fail on unknown inputs and cycles now rather than on the first frame
+        graph.order();
+        return graph;
+    }
+
+    private static Stage parseStage(JSONObject json) {
+        String id = json.getString("id");
+        Op op = Op.named(json.getString("op"));
+
+        String[] inputs;
+        if (json.hasKey("inputs")) {
+            JSONArray array = json.getJSONArray("inputs");
+            inputs = new String[array.size()];
+            for (int i = 0; i < inputs.length; i++) {
+                inputs[i] = array.getString(i);
+            }
+        } else {
+            inputs = new String[] {json.getString("input", SOURCE)};
+        }
+        if (inputs.length != op.inputs) {
+            throw new IllegalArgumentException("Stage \"" + id + "\" needs " + op.inputs + " input(s)");
+        }
+
+        Stage stage = new Stage(id, op, inputs);
+        switch (op) {
+            case BLUR:
+                stage.size = json.getInt("size", 3);
+                stage.sigma = json.getDouble("sigma", 0);
+                if (stage.size < 1 || stage.size % 2 == 0) {
+                    throw new IllegalArgumentException("Stage \"" + id + "\" needs an odd size");
+                }
+                break;
+            case CVT_COLOR:
+                stage.code = colorCode(json.getString("code"));
+                break;
+            case IN_RANGE:
+                stage.lower = values(json.getJSONArray("lower"));
+                stage.upper = values(json.getJSONArray("upper"));
+                break;
+            case MORPHOLOGY:
+                String spec = json.getString("spec", "config");
+                stage.spec = spec.equals("config") ? null : MorphologySpec.parse(spec);
+                break;
+            case ROI:
+                if (json.hasKey("rect") && !"config".equals(json.getString("rect", null))) {
+                    stage.rect = values(json.getJSONArray("rect"));
+                    if (stage.rect.length != 4) {
+                        throw new IllegalArgumentException("Stage \"" + id + "\" needs rect [x0, y0, x1, y1]");
+                    }
+                }
+                break;
+            default:
+                break;
+        }
+        return stage;
+    }
+
+    private static int colorCode(String code) {
+        switch (code.toUpperCase()) {
+            case "BGR2HLS":
+                return Imgproc.COLOR_BGR2HLS;
+            case "BGR2HSV":
+                return Imgproc.COLOR_BGR2HSV;
+            case "BGR2GRAY":
+                return Imgproc.COLOR_BGR2GRAY;
+            case "BGR2RGB":
+                return Imgproc.COLOR_BGR2RGB;
+            default:
+                throw new IllegalArgumentException("Unknown color code \"" + code + "\"");
+        }
+    }
+
+    private static double[] values(JSONArray array) {
+        double[] values = new double[array.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = array.getDouble(i);
+        }
+        return values;
+    }
+
+    /**
+     * Orders the stages, plans the buffers and builds a pipeline that runs them.
+     * Each call gives a new pipeline with its own buffers, one per thread.
+     * @return the executable pipeline
+     * @throws IllegalArgumentException if a stage uses an unknown input or the graph has a cycle
+     */
+    public CompiledGraph compile() {
+        List<Stage> order = order();
+
+        // Position of the last stage reading each stage, the output lives to the end
+        Map<String, Integer> lastUse = new HashMap<>();
+        for (int i = 0; i < order.size(); i++) {
+            for (String input : order.get(i).inputs) {
+                lastUse.put(input, i);
+            }
+        }
+        lastUse.put(output, order.size());
+
+        // Linear scan over the stages, reusing buffers of the same type as soon as their last reader is done
+        Map<String, Integer> slotOf = new HashMap<>();
+        Map<String, Integer> channelsOf = new HashMap<>();
+        channelsOf.put(SOURCE, SOURCE_CHANNELS);
+        List<Integer> slotChannels = new ArrayList<>();
+        // Free buffers by their number of channels
+        Map<Integer, Deque<Integer>> free = new HashMap<>();
+        int[] slots = new int[order.size()];
+        int[][] inputSlots = new int[order.size()][];
+        for (int i = 0; i < order.size(); i++) {
+            Stage stage = order.get(i);
+            inputSlots[i] = new int[stage.inputs.length];
+            List<Integer> dying = new ArrayList<>();
+            for (int j = 0; j < stage.inputs.length; j++) {
+                String input = stage.inputs[j];
+                if (input.equals(SOURCE)) {
+                    // The source is read only
+                    inputSlots[i][j] = -1;
+                    continue;
+                }
+                inputSlots[i][j] = slotOf.get(input);
+                if (lastUse.get(input) == i && !dying.contains(inputSlots[i][j])) {
+                    dying.add(inputSlots[i][j]);
+                }
+            }
+            int channels = stage.op.outputChannels(stage, channelsOf.get(stage.inputs[0]));
+            Deque<Integer> sameType = free.computeIfAbsent(channels, c -> new ArrayDeque<>());
+
+            if (stage.op.inPlace) {
+                // Free first so the output can take over an input's buffer
+                release(dying, slotChannels, free);
+                slots[i] = take(sameType, channels, slotChannels);
+            } else {
+                slots[i] = take(sameType, channels, slotChannels);
+                release(dying, slotChannels, free);
+            }
+            slotOf.put(stage.id, slots[i]);
+            channelsOf.put(stage.id, channels);
+        }
+
+        return new CompiledGraph(order, slots, inputSlots, slotChannels.size());
+    }
+
+    /**
+     * A free buffer of the type, or a new one
+     */
+    private static int take(Deque<Integer> sameType, int channels, List<Integer> slotChannels) {
+        if (!sameType.isEmpty()) {
+            return sameType.pollFirst();
+        }
+        slotChannels.add(channels);
+        return slotChannels.size() - 1;
+    }
+
+    private static void release(List<Integer> dying, List<Integer> slotChannels, Map<Integer, Deque<Integer>> free) {
+        for (int slot : dying) {
+            free.computeIfAbsent(slotChannels.get(slot), c -> new ArrayDeque<>()).addFirst(slot);
+        }
+    }
+
+    /**
+     * Dependency order of the stages the output needs
+     */
+    private List<Stage> order() {
+        List<Stage> order = new ArrayList<>();
+        Map<String, Boolean> visiting = new HashMap<>();
+        visit(output, visiting, order);
+        return order;
+    }
+
+    private void visit(String id, Map<String, Boolean> visiting, List<Stage> order) {
+        if (id.equals(SOURCE)) {
+            return;
+        }
+        Boolean state = visiting.get(id);
+        if (state != null) {
+            if (state) {
+                throw new IllegalArgumentException("Stage \"" + id + "\" depends on itself");
+            }
+            return;
+        }
+        Stage stage = stages.get(id);
+        if (stage == null) {
+            throw new IllegalArgumentException("Unknown input \"" + id + "\"");
+        }
+        visiting.put(id, true);
+        for (String input : stage.inputs) {
+            visit(input, visiting, order);
+        }
+        visiting.put(id, false);
+        order.add(stage);
+    }
+}
@@ -0,0 +1,94 @@
+/**
+ * PipelinePlan class.
+ *
+ * <p>Which stages of {@link GripPipeline} actually need to run for a {@link PipelineConfig}.
+ * Stages that can't change the image are skipped:
+ * <ul>
+ *   <li>A 1x1 Gaussian blur returns its input, so it is never run.</li>
+ *   <li>A threshold where every bound covers its full range lets every pixel through, so the mask is
+ *       simply filled. The ROI makes no difference then either, black passes as well.</li>
+ *   <li>Without a blur every stage before the morphology works pixel by pixel. The ROI then doesn't need
+ *       a masked copy of the frame: only the pixels inside it are thresholded and the rest of the mask is
+ *       filled with what a black pixel thresholds to.</li>
+ * </ul>
+ */
+public final class PipelinePlan {
+
+    private static final double HUE_MAX = 180;
+    private static final double CHANNEL_MAX = 255;
+
+    /** Run the Gaussian blur */
+    public final boolean blur;
+    /** Run the color conversion and inRange, otherwise the mask is filled with 255 */
+    public final boolean threshold;
+    /** Apply the ROI at all */
+    public final boolean roi;
+    /** Threshold only inside the ROI and fill the rest with outsideValue instead of masking a copy */
+    public final boolean roiAfterThreshold;
+    /** What a black pixel outside the ROI thresholds to */
+    public final int outsideValue;
+
+    private final String description;
+
+    private PipelinePlan(boolean blur, boolean threshold, boolean roi, boolean roiAfterThreshold, int outsideValue) {
+        this.blur = blur;
+        this.threshold = threshold;
+        this.roi = roi;
+        this.roiAfterThreshold = roiAfterThreshold;
+        this.outsideValue = outsideValue;
+
+        StringBuilder stages = new StringBuilder();
+        if (roi && !roiAfterThreshold) {
+            stages.append("roi mask -> ");
+        }
+        if (blur) {
+            stages.append("blur -> ");
+        }
+        if (threshold) {
+            stages.append(roiAfterThreshold ? "threshold inside roi -> " : "threshold -> ");
+        } else {
+            stages.append("fill mask -> ");
+        }
+        stages.append("morphology");
+        description = stages.toString();
+    }
+
+    /**
+     * Works out the plan for a configuration
+     * @param config the values the frame will be processed with
+     * @param blurKernelSize size of the pipeline's Gaussian blur kernel
+     * @return the plan
+     */
+    public static PipelinePlan of(PipelineConfig config, int blurKernelSize) {
+        boolean blur = blurKernelSize > 1;
+        boolean threshold = !fullRange(config);
+        boolean roi = config.roi && threshold;
+        boolean roiAfterThreshold = roi && !blur;
+        int outsideValue = blackPasses(config) ? 255 : 0;
+        return new PipelinePlan(blur, threshold, roi, roiAfterThreshold, outsideValue);
+    }
+
+    private static boolean fullRange(PipelineConfig c) {
+        if (c.hsl) {
+            return c.hueLow <= 0 && c.hueHigh >= HUE_MAX
+                    && c.satLow <= 0 && c.satHigh >= CHANNEL_MAX
+                    && c.lumLow <= 0 && c.lumHigh >= CHANNEL_MAX;
+        }
+        return c.redLow <= 0 && c.redHigh >= CHANNEL_MAX
+                && c.greenLow <= 0 && c.greenHigh >= CHANNEL_MAX
+                && c.blueLow <= 0 && c.blueHigh >= CHANNEL_MAX;
+    }
+
+    private static boolean blackPasses(PipelineConfig c) {
+        // Black is 0 in every channel of both HLS and RGB
+        if (c.hsl) {
+            return c.hueLow <= 0 && c.satLow <= 0 && c.lumLow <= 0;
+        }
+        return c.redLow <= 0 && c.greenLow <= 0 && c.blueLow <= 0;
+    }
+
+    @Override
+    public String toString() {
+        return description;
+    }
+}
@@ -0,0 +1,269 @@
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * PreviewGrid class.
+ *
+ * <p>Shows the current values on several frames spread over the run instead of only the sample image,
+ * so thresholds that stop working late in a time-lapse are noticed before the analysis.
+ * Each cell is a frame's mask with the largest blob boxed in green. The frames can also be picked by
+ * number, e.g. the ones where the front is known to be hard to see.
+ *
+ * <p>Like the analysis, the frames come from the folder's raw frame file if it has one, otherwise from
+ * its images. They are decoded once at the size of the sample image, images through the {@link FrameCache}, corrected
+ * for lighting when the analysis does that too, and processed in parallel, each worker with its own
+ * pipeline. Processing at the sample image's size keeps kernel sizes, blurs and ROIs the same as in the
+ * analysis, each cell is scaled down afterwards. Updates coalesce: while a grid is being rendered only
+ * the newest values are kept, so dragging a slider never queues up stale renders. Finished grids are
+ * handed to the draw loop through a {@link FrameHandoff}.
+ */
+public class PreviewGrid {
+
+    /** Frames shown by default */
+    public static final int DEFAULT_SAMPLES = 12;
+
+    private final int columns, rows;
+    // Size of the sample image the values are picked on, the frames are processed at
+    private final Size frameSize;
+    private final Size cellSize;
+    // From the sample image to a cell
+    private final double scaleX, scaleY;
+    private final FrameCache frameCache;
+    private final ExecutorService coordinator = Executors.newSingleThreadExecutor();
+    private final ExecutorService workers;
+    private final BlockingQueue<MaskPipeline> pipelines;
+    private final FrameHandoff grids = new FrameHandoff();
+
+    private final AtomicReference<PipelineConfig> requested = new AtomicReference<>();
+    private final AtomicBoolean rendering = new AtomicBoolean();
+    // Only touched on the coordinator thread
+    private final List<Mat> samples = new ArrayList<>();
+
+    /**
+     * @param width width of the whole grid, same as the sample image the ROI is selected on
+     * @param height height of the whole grid, same as the sample image the ROI is selected on
+     * @param count number of frames, laid out in a near square grid
+     * @param frameCache decodes the frames
+     * @param threads number of frames processed in parallel
+     * @param pipelines makes the pipeline of each worker, the same kind the analysis uses
+     */
+    public PreviewGrid(int width, int height, int count, FrameCache frameCache, int threads, Supplier<MaskPipeline> pipelines) {
+        this.columns = (int)Math.ceil(Math.sqrt(count));
+        this.rows = (count + columns - 1) / columns;
+        this.frameSize = new Size(width, height);
+        this.cellSize = new Size(width / columns, height / rows);
+        this.scaleX = cellSize.width / width;
+        this.scaleY = cellSize.height / height;
+        this.frameCache = frameCache;
+        this.workers = Executors.newFixedThreadPool(threads);
+        this.pipelines = new ArrayBlockingQueue<>(threads);
+        for (int i = 0; i < threads; i++) {
+            this.pipelines.add(pipelines.get());
+        }
+    }
+
+    /**
+     * Picks frames evenly spread over a run, first and last included
+     * @param frameCount number of frames in the run
+     * @param count most frames to pick
+     * @return the frame numbers in order
+     */
+    public static int[] spreadFrames(int frameCount, int count) {
+        int picked = Math.min(frameCount, count);
+        int[] frames = new int[picked];
+        for (int i = 0; i < picked; i++) {
+            frames[i] = picked == 1 ? 0 : (int)((long)i * (frameCount - 1) / (picked - 1));
+        }
+        return frames;
+    }
+
+    /**
+     * Replaces the frames with ones of a folder, listing and decoding happen in the background
+     * @param directory the folder, its raw frame file is used if it has one, otherwise its images
+     * @param frames frame numbers to show, or null to spread them over the run. At most the count given
+     *               to the constructor are used, numbers past the last frame are left out.
+     * @param lighting median color to correct every frame towards, see {@link IlluminationNormalizer}, or null to leave them
+     */
+    public void setSamples(File directory, int[] frames, double[] lighting) {
+        coordinator.execute(() -> {
+            for (Mat sample : samples) {
+                sample.release();
+            }
+            samples.clear();
+
+            ImageScanner scan = ImageScanner.scanNow(directory);
+            RawFrameFile raw = null;
+            for (File file : scan.rawFiles()) {
+                try {
+                    raw = RawFrameFile.open(file);
+                } catch (IOException e) {
+                    System.out.println("Unable to read " + file.getName() + ", the grid uses the images: " + e.getMessage());
+                }
+                break;
+            }
+            File[] images;
+            try {
+                images = raw != null ? new File[0] : scan.awaitFiles();
+            } catch (IOException | InterruptedException e) {
+                images = new File[0];
+            }
+            int frameCount = raw != null ? raw.size() : images.length;
+
+            List<Callable<Mat>> decodes = new ArrayList<>();
+            for (int frame : frames != null ? frames : spreadFrames(frameCount, columns * rows)) {
+                if (decodes.size() == columns * rows) {
+                    break;
+                }
+                if (frame < 0 || frame >= frameCount) {
+                    System.out.println("Frame " + frame + " isn't in " + directory.getName() + ", it has " + frameCount + " frames");
+                    continue;
+                }
+                RawFrameFile source = raw;
+                File file = raw != null ? null : images[frame];
+                decodes.add(() -> {
+                    Mat sample;
+                    if (source != null) {
+                        sample = source.read(frame);
+                        Imgproc.resize(sample, sample, frameSize);
+                    }else {
+                        sample = frameCache.get(file, frameSize);
+                    }
+                    if (lighting != null && !sample.empty()) {
+                        new IlluminationNormalizer(lighting).apply(sample, sample);
+                    }
+                    return sample;
+                });
+            }
+            for (Mat sample : runAll(decodes)) {
+                if (sample != null && !sample.empty()) {
+                    samples.add(sample);
+                }
+            }
+            if (raw != null) {
+                try {
+                    raw.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+
+    /**
+     * Renders the grid with new values. Returns straight away, the grid shows up in {@link #takeGrid()}.
+     * @param config the values to show
+     */
+    public void update(PipelineConfig config) {
+        requested.set(config);
+        if (rendering.compareAndSet(false, true)) {
+            coordinator.execute(this::renderRequested);
+        }
+    }
+
+    /**
+     * @return the newest rendered grid, owned by the caller, or null if there is nothing new
+     */
+    public Mat takeGrid() {
+        return grids.take();
+    }
+
+    public void shutdown() {
+        coordinator.shutdownNow();
+        workers.shutdownNow();
+    }
+
+    private void renderRequested() {
+        try {
+            PipelineConfig config;
+            while ((config = requested.getAndSet(null)) != null) {
+                render(config);
+            }
+        } finally {
+            rendering.set(false);
+            // A request that came in after the last check would otherwise wait for the next update
+            if (requested.get() != null && rendering.compareAndSet(false, true)) {
+                coordinator.execute(this::renderRequested);
+            }
+        }
+    }
+
+    private void render(PipelineConfig config) {
+        if (samples.isEmpty()) {
+            return;
+        }
+        List<Callable<Mat>> cells = new ArrayList<>();
+        for (Mat sample : samples) {
+            cells.add(() -> renderCell(sample, config));
+        }
+
+        Mat grid = new Mat((int)cellSize.height * rows, (int)cellSize.width * columns, CvType.CV_8UC3, Scalar.all(0));
+        List<Mat> rendered = runAll(cells);
+        for (int i = 0; i < rendered.size(); i++) {
+            Mat cell = rendered.get(i);
+            if (cell == null) {
+                continue;
+            }
+            Rect area = new Rect((i % columns) * (int)cellSize.width, (i / columns) * (int)cellSize.height, cell.cols(), cell.rows());
+            cell.copyTo(grid.submat(area));
+            cell.release();
+        }
+        grids.publish(grid);
+    }
+
+    private Mat renderCell(Mat sample, PipelineConfig config) throws InterruptedException {
+        MaskPipeline pipeline = pipelines.take();
+        try {
+            pipeline.process(sample, config);
+            Mat small = new Mat();
+            Imgproc.resize(pipeline.output(), small, cellSize, 0, 0, Imgproc.INTER_AREA);
+            Mat cell = new Mat();
+            Imgproc.cvtColor(small, cell, Imgproc.COLOR_GRAY2BGR);
+            small.release();
+            Blob blob = BlobFinder.largest(pipeline.output());
+            if (blob != null) {
+                Imgproc.rectangle(cell, new Point(blob.x * scaleX, blob.y * scaleY),
+                        new Point((blob.x + blob.width) * scaleX, (blob.y + blob.height) * scaleY), new Scalar(0, 255, 0), 2);
+            }
+            return cell;
+        } finally {
+            pipelines.add(pipeline);
+        }
+    }
+
+    private <T> List<T> runAll(List<Callable<T>> tasks) {
+        List<T> results = new ArrayList<>();
+        try {
+            for (Future<T> future : workers.invokeAll(tasks)) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    e.getCause().printStackTrace();
+                    results.add(null);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return results;
+    }
+}
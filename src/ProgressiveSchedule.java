@@ -0,0 +1,100 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ProgressiveSchedule class.
+ *
+ * <p>An order to measure frames in that gives a rough curve early and fills it in later. The first pass
+ * takes every {@code stride}th frame and the last frame, each following pass halves the stride and
+ * takes the frames between the ones already measured, until the last pass takes every frame left.
+ * For 20000 frames and a stride of 64 the first pass is 314 frames, and the whole run still measures
+ * every frame exactly once. The frames of one pass don't depend on each other, so a pass can be
+ * measured in any order and by several threads.
+ */
+public class ProgressiveSchedule {
+
+    public static final int DEFAULT_STRIDE = 64;
+
+    private final int[] order;
+    // Position in the order where each pass starts, the last entry is the number of frames
+    private final int[] passStarts;
+    private final int[] strides;
+
+    /**
+     * @param count number of frames
+     * @param stride stride of the first pass, rounded up to a power of 2
+     */
+    public ProgressiveSchedule(int count, int stride) {
+        if (stride < 1) {
+            throw new IllegalArgumentException("Stride must be at least 1: " + stride);
+        }
+        int first = Integer.highestOneBit(stride);
+        if (first < stride) {
+            first <<= 1;
+        }
+
+        order = new int[count];
+        boolean[] taken = new boolean[count];
+        List<Integer> starts = new ArrayList<>();
+        List<Integer> passStrides = new ArrayList<>();
+        int position = 0;
+        for (int s = first; s >= 1; s >>= 1) {
+            starts.add(position);
+            passStrides.add(s);
+            for (int frame = 0; frame < count; frame += s) {
+                if (!taken[frame]) {
+                    taken[frame] = true;
+                    order[position++] = frame;
+                }
+            }
+            // The end of the curve belongs to the first pass
+            if (s == first && count > 0 && !taken[count - 1]) {
+                taken[count - 1] = true;
+                order[position++] = count - 1;
+            }
+        }
+
+        passStarts = new int[starts.size() + 1];
+        strides = new int[passStrides.size()];
+        for (int i = 0; i < strides.length; i++) {
+            passStarts[i] = starts.get(i);
+            strides[i] = passStrides.get(i);
+        }
+        passStarts[strides.length] = count;
+    }
+
+    /**
+     * @return the frame numbers in the order they should be measured, owned by the schedule
+     */
+    public int[] order() {
+        return order;
+    }
+
+    public int passes() {
+        return strides.length;
+    }
+
+    /**
+     * @param pass the pass
+     * @return every how many frames the curve has a point once the pass is done
+     */
+    public int stride(int pass) {
+        return strides[pass];
+    }
+
+    /**
+     * @param pass the pass
+     * @return position in the order of the first frame of the pass
+     */
+    public int start(int pass) {
+        return passStarts[pass];
+    }
+
+    /**
+     * @param pass the pass
+     * @return position in the order after the last frame of the pass
+     */
+    public int end(int pass) {
+        return passStarts[pass + 1];
+    }
+}
@@ -0,0 +1,265 @@
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * RawFrameFile class.
+ *
+ * <p>Uncompressed frames dumped by a camera, all in one file, so they can be analyzed without a JPEG
+ * encode and decode in between. The file is memory mapped and a frame is copied straight from the
+ * mapping into its {@link Mat}, without going through an image decoder.
+ *
+ * <p>File layout, big endian like the other files of this project:
+ * <pre>
+ *   header   magic "LBRF", version, width, height, format, frame count, 8 reserved bytes
+ *   frames   frame count * frame bytes, packed row by row without padding
+ * </pre>
+ * Formats are {@link Format#BGR} with 3 bytes per pixel and the four 8 bit Bayer patterns with 1 byte
+ * per pixel, named by their top left 2x2 block the way OpenCV names them.
+ *
+ * <p>Bayer frames are only demosaiced inside the ROI when one is given; everything outside it stays black,
+ * since the pipeline clears it anyway. {@code --normalize} measures the lighting inside the ROI for the same
+ * reason, see {@link IlluminationNormalizer}. Only the copy out of the mapping is synchronized, one frame
+ * is copied at a time while demosaicing runs in parallel.
+ */
+public class RawFrameFile implements Closeable {
+
+    public static final int MAGIC = 0x4C425246; // "LBRF"
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 32;
+    public static final String EXTENSION = ".lbrf";
+
+    /** Largest region mapped at once, mappings are limited to 2GB */
+    private static final long MAX_MAPPING = 1L << 30;
+    /** Extra pixels demosaiced around the ROI so its edges are interpolated from real neighbours */
+    private static final int ROI_MARGIN = 2;
+
+    public enum Format {
+        BGR(3, -1),
+        BAYER_BG(1, Imgproc.COLOR_BayerBG2BGR),
+        BAYER_GB(1, Imgproc.COLOR_BayerGB2BGR),
+        BAYER_RG(1, Imgproc.COLOR_BayerRG2BGR),
+        BAYER_GR(1, Imgproc.COLOR_BayerGR2BGR);
+
+        final int channels;
+        final int demosaicCode;
+
+        Format(int channels, int demosaicCode) {
+            this.channels = channels;
+            this.demosaicCode = demosaicCode;
+        }
+    }
+
+    private final File file;
+    private final FileChannel channel;
+    private final int width, height, count;
+    private final Format format;
+    private final int frameBytes;
+    // Each mapping holds framesPerMapping whole frames
+    private final MappedByteBuffer[] mappings;
+    private final int framesPerMapping;
+    // Frame bytes on their way into a Mat, guarded by itself
+    private final byte[] rowBuffer;
+
+    private RawFrameFile(File file, FileChannel channel, int width, int height, Format format, int count) throws IOException {
+        this.file = file;
+        this.channel = channel;
+        this.width = width;
+        this.height = height;
+        this.format = format;
+        this.count = count;
+        this.frameBytes = width * height * format.channels;
+        this.framesPerMapping = (int)Math.max(1, Math.min(count, MAX_MAPPING / frameBytes));
+        this.mappings = new MappedByteBuffer[(count + framesPerMapping - 1) / framesPerMapping];
+        for (int i = 0; i < mappings.length; i++) {
+            long offset = HEADER_SIZE + (long) i * framesPerMapping * frameBytes;
+            long length = (long) Math.min(framesPerMapping, count - i * framesPerMapping) * frameBytes;
+            mappings[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+        }
+        this.rowBuffer = new byte[frameBytes];
+    }
+
+    /**
+     * @param file any file
+     * @return whether the file has the raw frame extension
+     */
+    public static boolean isRaw(File file) {
+        return file.getName().toLowerCase().endsWith(EXTENSION);
+    }
+
+    /**
+     * Opens and maps a raw frame file
+     * @param file the file
+     * @return the open file
+     * @throws IOException if the file can't be read, isn't a raw frame file or is shorter than its header says
+     */
+    public static RawFrameFile open(File file) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            channel.read(header, 0);
+            header.flip();
+            if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC) {
+                throw new IOException("Not a raw frame file: " + file);
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported raw frame file version " + version);
+            }
+            int width = header.getInt();
+            int height = header.getInt();
+            int formatIndex = header.getInt();
+            int count = header.getInt();
+            if (formatIndex < 0 || formatIndex >= Format.values().length) {
+                throw new IOException("Unknown raw frame format " + formatIndex);
+            }
+            Format format = Format.values()[formatIndex];
+            if (width <= 0 || height <= 0 || count < 0 || (long) width * height * format.channels > Integer.MAX_VALUE) {
+                throw new IOException("Invalid frame size " + width + "x" + height + " in " + file);
+            }
+            if (format != Format.BGR && (width % 2 != 0 || height % 2 != 0)) {
+                throw new IOException("Bayer frames must have an even width and height: " + file);
+            }
+            long expected = HEADER_SIZE + (long) count * width * height * format.channels;
+            if (channel.size() < expected) {
+                throw new IOException("Raw frame file is truncated, expected " + expected + " bytes but got " + channel.size());
+            }
+            return new RawFrameFile(file, channel, width, height, format, count);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public int width() {
+        return width;
+    }
+
+    public int height() {
+        return height;
+    }
+
+    public Format format() {
+        return format;
+    }
+
+    /**
+     * @param frame frame number
+     * @return a name for the frame in the results, e.g. "run_00012" for frame 12 of run.lbrf
+     */
+    public String name(int frame) {
+        String base = file.getName().substring(0, file.getName().length() - EXTENSION.length());
+        return String.format("%s_%05d", base, frame);
+    }
+
+    /**
+     * Reads a whole frame
+     * @param frame frame number
+     * @return the frame as BGR, owned by the caller
+     */
+    public Mat read(int frame) {
+        return read(frame, null);
+    }
+
+    /**
+     * Reads a frame, demosaicing Bayer frames only inside the ROI
+     * @param frame frame number
+     * @param roi the part of the frame that's needed, in frame pixels, or null for the whole frame.
+     *            BGR frames are always read whole.
+     * @return the frame as BGR, owned by the caller
+     */
+    public Mat read(int frame, Rect roi) {
+        if (frame < 0 || frame >= count) {
+            throw new IndexOutOfBoundsException("Frame " + frame + " of " + count);
+        }
+        ByteBuffer mapping = mappings[frame / framesPerMapping].duplicate();
+        int frameOffset = (frame % framesPerMapping) * frameBytes;
+
+        if (format == Format.BGR) {
+            Mat bgr = new Mat(height, width, CvType.CV_8UC3);
+            synchronized (rowBuffer) {
+                mapping.position(frameOffset);
+                mapping.get(rowBuffer, 0, frameBytes);
+                bgr.put(0, 0, rowBuffer);
+            }
+            return bgr;
+        }
+
+        // Even bounds keep the Bayer pattern the same as the frame's
+        Rect area = roi == null ? new Rect(0, 0, width, height) : bayerArea(roi);
+        Mat bayer = new Mat(area.height, area.width, CvType.CV_8UC1);
+        synchronized (rowBuffer) {
+            int length = 0;
+            for (int y = area.y; y < area.y + area.height; y++) {
+                mapping.position(frameOffset + y * width + area.x);
+                mapping.get(rowBuffer, length, area.width);
+                length += area.width;
+            }
+            bayer.put(0, 0, rowBuffer, 0, length);
+        }
+
+        if (roi == null) {
+            Mat bgr = new Mat();
+            Imgproc.cvtColor(bayer, bgr, format.demosaicCode);
+            bayer.release();
+            return bgr;
+        }
+        Mat bgr = new Mat(height, width, CvType.CV_8UC3, Scalar.all(0));
+        Mat target = bgr.submat(area);
+        Imgproc.cvtColor(bayer, target, format.demosaicCode);
+        target.release();
+        bayer.release();
+        return bgr;
+    }
+
+    /**
+     * Reads a frame for the pipeline, demosaicing Bayer frames only inside the config's ROI
+     * @param frame frame number
+     * @param config the values, its ROI picked on frames of roiSpace size
+     * @param roiSpace size of the frames the ROI was picked on
+     * @return the frame as BGR at full size, owned by the caller
+     */
+    public Mat read(int frame, PipelineConfig config, Size roiSpace) {
+        Rect roi = null;
+        if (config.roi) {
+            PipelineConfig scaled = config.transformROI(width / roiSpace.width, height / roiSpace.height, 0, 0);
+            roi = GripPipeline.roiRect(scaled, width, height);
+        }
+        return read(frame, roi);
+    }
+
+    private Rect bayerArea(Rect roi) {
+        int x0 = Math.max(0, roi.x - ROI_MARGIN) & ~1;
+        int y0 = Math.max(0, roi.y - ROI_MARGIN) & ~1;
+        int x1 = Math.min(width, (roi.x + roi.width + ROI_MARGIN + 1) & ~1);
+        int y1 = Math.min(height, (roi.y + roi.height + ROI_MARGIN + 1) & ~1);
+        // Demosaicing needs at least one 2x2 block
+        x1 = Math.max(x1, Math.min(width, x0 + 2));
+        y1 = Math.max(y1, Math.min(height, y0 + 2));
+        return new Rect(x0, y0, x1 - x0, y1 - y0);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
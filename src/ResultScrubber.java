@@ -0,0 +1,116 @@
+import org.opencv.core.Mat;
+import processing.core.PImage;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.text.DecimalFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * ResultScrubber class.
+ *
+ * <p>Browses a finished run frame by frame: the thumbnails from a {@link ThumbnailAtlas} next to the
+ * measurements from the {@link ResultStoreReader}. Nothing is decoded again, a frame costs one small
+ * read from each file. Converted thumbnails around the current frame are kept so moving back and forth
+ * is free.
+ */
+public class ResultScrubber implements Closeable {
+
+    // Converted thumbnails kept, a few filmstrips worth
+    private static final int CACHED_IMAGES = 128;
+
+    private final ResultStoreReader results;
+    private final ThumbnailAtlas atlas;
+    private final Function<Mat, PImage> toImage;
+    private final DecimalFormat df = new DecimalFormat("#.###");
+    private final Map<Long, PImage> images = new LinkedHashMap<Long, PImage>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, PImage> eldest) {
+            return size() > CACHED_IMAGES;
+        }
+    };
+
+    private ResultScrubber(ResultStoreReader results, ThumbnailAtlas atlas, Function<Mat, PImage> toImage) {
+        this.results = results;
+        this.atlas = atlas;
+        this.toImage = toImage;
+    }
+
+    /**
+     * @param resultsFile the run's result store
+     * @param atlasFile the run's thumbnails
+     * @param toImage converts a BGR thumbnail for drawing
+     * @return the scrubber
+     * @throws IOException if either file can't be opened
+     */
+    public static ResultScrubber open(File resultsFile, File atlasFile, Function<Mat, PImage> toImage) throws IOException {
+        ResultStoreReader results = ResultStoreReader.open(resultsFile);
+        try {
+            return new ResultScrubber(results, ThumbnailAtlas.open(atlasFile), toImage);
+        } catch (IOException e) {
+            results.close();
+            throw e;
+        }
+    }
+
+    public int size() {
+        return results.size();
+    }
+
+    /**
+     * @param frame the frame number
+     * @param level 0 for the preview, 1 for the filmstrip, see {@link ThumbnailAtlas}
+     * @return the thumbnail, or null if the frame wasn't analysed
+     */
+    public PImage thumbnail(int frame, int level) {
+        long key = (long) frame * ThumbnailAtlas.LEVELS + level;
+        if (images.containsKey(key)) {
+            return images.get(key);
+        }
+        PImage image = null;
+        try {
+            Mat thumbnail = atlas.read(frame, level);
+            if (thumbnail != null) {
+                image = toImage.apply(thumbnail);
+                thumbnail.release();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        images.put(key, image);
+        return image;
+    }
+
+    /**
+     * @return the frame's filename and measurements, one per line
+     */
+    public String describe(int frame) {
+        String description = "Image " + (frame + 1) + " of " + size() + "\n";
+        if (!results.isWritten(frame)) {
+            return description + "Not analyzed";
+        }
+        description += results.filename(frame) + "\n" + "Elapsed time: " + df.format(results.elapsed(frame)) + " s\n";
+        if (results.isFailed(frame)) {
+            return description + "Unable to analyze";
+        }
+        if (results.isCarried(frame)) {
+            description += "Unchanged, measurement carried forward\n";
+        }
+        if (!results.isDetected(frame)) {
+            return description + "Nothing detected";
+        }
+        return description + "Highest pixel: " + results.highest(frame) + "\n" + "Lowest pixel: " + results.lowest(frame);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            atlas.close();
+        } finally {
+            results.close();
+        }
+    }
+}
@@ -0,0 +1,195 @@
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Binary result store writer.
+ *
+ * <p>Stores one fixed-width record per frame so results can be written without any text
+ * formatting and read back through a memory map (see {@link ResultStoreReader}).
+ *
+ * <p>File layout:
+ * <pre>
+ *   header   magic, version, record count, record size, records offset
+ *   names    record count filenames, each as modified UTF-8
+ *   records  record count * RECORD_SIZE bytes, one per frame
+ * </pre>
+ * Each record is laid out as {@code int fileIndex, int flags, double elapsed, int highest, int lowest}.
+ * The number of frames is fixed when the store is created, so records can be written in any
+ * order and from several threads as long as each frame is written by only one of them.
+ */
+public class ResultStore implements Closeable {
+
+    public static final int MAGIC = 0x4C425253; // "LBRS"
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 32;
+    public static final int RECORD_SIZE = 24;
+
+    // Record field offsets
+    static final int FILE_INDEX_OFFSET = 0;
+    static final int FLAGS_OFFSET = 4;
+    static final int ELAPSED_OFFSET = 8;
+    static final int HIGHEST_OFFSET = 16;
+    static final int LOWEST_OFFSET = 20;
+
+    /** Set once the record has been written. Records without it were never measured. */
+    public static final int FLAG_WRITTEN = 1;
+    /** Set when something was detected, i.e. highest and lowest pixel are valid. */
+    public static final int FLAG_DETECTED = 2;
+    /** Set when the frame wasn't measured but kept the measurement of an earlier, unchanged looking frame. */
+    public static final int FLAG_CARRIED = 4;
+    /** Set when the frame couldn't be read or analyzed, as opposed to analyzed with nothing detected. */
+    public static final int FLAG_FAILED = 8;
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final MappedByteBuffer records;
+    private final int count;
+
+    private ResultStore(File file, RandomAccessFile raf, MappedByteBuffer records, int count) {
+        this.file = file;
+        this.raf = raf;
+        this.records = records;
+        this.count = count;
+    }
+
+    /**
+     * Creates a new store with room for one record per filename.
+     * @param file the file to create, any existing file is replaced
+     * @param filenames the filenames of the frames, the index in this array is the filename index
+     * @return the open store
+     * @throws IOException if the file can't be created
+     */
+    public static ResultStore create(File file, String[] filenames) throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+
+        // Header and names are small so they are written with a plain stream
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(filenames.length);
+            out.writeInt(RECORD_SIZE);
+            out.writeLong(0); // Records offset, patched below
+            out.writeLong(0); // Reserved
+            for (String name : filenames) {
+                out.writeUTF(name);
+            }
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            // Records start 8 byte aligned after the names
+            long recordsOffset = (raf.length() + 7) & ~7L;
+            long recordsLength = (long) filenames.length * RECORD_SIZE;
+            if (recordsLength > Integer.MAX_VALUE) {
+                throw new IOException("Too many frames for one result store: " + filenames.length);
+            }
+            raf.seek(16);
+            raf.writeLong(recordsOffset);
+            raf.setLength(recordsOffset + recordsLength);
+
+            MappedByteBuffer records = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, recordsOffset, recordsLength);
+            return new ResultStore(file, raf, records, filenames.length);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Records a frame where something was detected.
+     * @param frame the frame (record) number
+     * @param fileIndex index of the frame's filename
+     * @param elapsed elapsed time of the frame in seconds
+     * @param highest highest pixel of the detected object
+     * @param lowest lowest pixel of the detected object
+     */
+    public void write(int frame, int fileIndex, double elapsed, int highest, int lowest) {
+        put(frame, fileIndex, FLAG_WRITTEN | FLAG_DETECTED, elapsed, highest, lowest);
+    }
+
+    /**
+     * Records a frame where nothing was detected.
+     * @param frame the frame (record) number
+     * @param fileIndex index of the frame's filename
+     * @param elapsed elapsed time of the frame in seconds
+     */
+    public void writeEmpty(int frame, int fileIndex, double elapsed) {
+        put(frame, fileIndex, FLAG_WRITTEN, elapsed, -1, -1);
+    }
+
+    /**
+     * Records a frame that couldn't be read or analyzed.
+     * @param frame the frame (record) number
+     * @param fileIndex index of the frame's filename
+     * @param elapsed elapsed time of the frame in seconds
+     */
+    public void writeFailed(int frame, int fileIndex, double elapsed) {
+        put(frame, fileIndex, FLAG_WRITTEN | FLAG_FAILED, elapsed, -1, -1);
+    }
+
+    /**
+     * Records a frame that keeps the measurement of an earlier frame, see {@link ChangeDetector}.
+     * @param frame the frame (record) number
+     * @param fileIndex index of the frame's filename
+     * @param elapsed elapsed time of the frame in seconds
+     * @param source the earlier frame, already written
+     */
+    public void carry(int frame, int fileIndex, double elapsed, int source) {
+        if (source < 0 || source >= count) {
+            throw new IndexOutOfBoundsException("Frame " + source + " outside of store with " + count + " frames");
+        }
+        int base = source * RECORD_SIZE;
+        int flags = records.getInt(base + FLAGS_OFFSET);
+        if ((flags & FLAG_WRITTEN) == 0) {
+            throw new IllegalStateException("Frame " + source + " hasn't been written");
+        }
+        put(frame, fileIndex, flags | FLAG_CARRIED, elapsed, records.getInt(base + HIGHEST_OFFSET), records.getInt(base + LOWEST_OFFSET));
+    }
+
+    private void put(int frame, int fileIndex, int flags, double elapsed, int highest, int lowest) {
+        if (frame < 0 || frame >= count) {
+            throw new IndexOutOfBoundsException("Frame " + frame + " outside of store with " + count + " frames");
+        }
+        // Absolute puts only, the buffer position is never touched so writers don't interfere
+        int base = frame * RECORD_SIZE;
+        records.putInt(base + FILE_INDEX_OFFSET, fileIndex);
+        records.putDouble(base + ELAPSED_OFFSET, elapsed);
+        records.putInt(base + HIGHEST_OFFSET, highest);
+        records.putInt(base + LOWEST_OFFSET, lowest);
+        // Flags last so a reader never sees a written record with stale values
+        records.putInt(base + FLAGS_OFFSET, flags);
+    }
+
+    /**
+     * @return the number of frames the store has room for
+     */
+    public int size() {
+        return count;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Forces the written records out to disk.
+     */
+    public void flush() {
+        records.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        raf.close();
+    }
+}
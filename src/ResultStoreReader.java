@@ -0,0 +1,221 @@
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.text.DecimalFormat;
+
+/**
+ * Memory-mapped reader for files written by {@link ResultStore}.
+ *
+ * <p>Records are read straight out of the map so any frame can be looked up without
+ * parsing the rest of the file. The exporters write the same text and CSV layout that
+ * the analysis used to produce directly.
+ */
+public class ResultStoreReader implements Closeable {
+
+    private final RandomAccessFile raf;
+    private final MappedByteBuffer records;
+    private final String[] filenames;
+    private final int count;
+
+    private ResultStoreReader(RandomAccessFile raf, MappedByteBuffer records, String[] filenames) {
+        this.raf = raf;
+        this.records = records;
+        this.filenames = filenames;
+        this.count = filenames.length;
+    }
+
+    /**
+     * Opens a result store for reading.
+     * @param file the store written by {@link ResultStore}
+     * @return the open reader
+     * @throws IOException if the file can't be read or isn't a result store
+     */
+    public static ResultStoreReader open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, ResultStore.HEADER_SIZE);
+            if (header.getInt(0) != ResultStore.MAGIC) {
+                throw new IOException(file.getName() + " is not a result store");
+            }
+            if (header.getInt(4) != ResultStore.VERSION || header.getInt(12) != ResultStore.RECORD_SIZE) {
+                throw new IOException(file.getName() + " has an unsupported result store version");
+            }
+            int count = header.getInt(8);
+            long recordsOffset = header.getLong(16);
+
+            // Filenames sit between the header and the records
+            byte[] names = new byte[(int) (recordsOffset - ResultStore.HEADER_SIZE)];
+            raf.seek(ResultStore.HEADER_SIZE);
+            raf.readFully(names);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(names));
+            String[] filenames = new String[count];
+            for (int i = 0; i < count; i++) {
+                filenames[i] = in.readUTF();
+            }
+
+            MappedByteBuffer records = channel.map(FileChannel.MapMode.READ_ONLY, recordsOffset, (long) count * ResultStore.RECORD_SIZE);
+            return new ResultStoreReader(raf, records, filenames);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the number of frames in the store
+     */
+    public int size() {
+        return count;
+    }
+
+    public boolean isWritten(int frame) {
+        return (flags(frame) & ResultStore.FLAG_WRITTEN) != 0;
+    }
+
+    public boolean isDetected(int frame) {
+        return (flags(frame) & ResultStore.FLAG_DETECTED) != 0;
+    }
+
+    public boolean isCarried(int frame) {
+        return (flags(frame) & ResultStore.FLAG_CARRIED) != 0;
+    }
+
+    public boolean isFailed(int frame) {
+        return (flags(frame) & ResultStore.FLAG_FAILED) != 0;
+    }
+
+    public int flags(int frame) {
+        return records.getInt(frame * ResultStore.RECORD_SIZE + ResultStore.FLAGS_OFFSET);
+    }
+
+    public int fileIndex(int frame) {
+        return records.getInt(frame * ResultStore.RECORD_SIZE + ResultStore.FILE_INDEX_OFFSET);
+    }
+
+    public String filename(int frame) {
+        return filenames[fileIndex(frame)];
+    }
+
+    public double elapsed(int frame) {
+        return records.getDouble(frame * ResultStore.RECORD_SIZE + ResultStore.ELAPSED_OFFSET);
+    }
+
+    public int highest(int frame) {
+        return records.getInt(frame * ResultStore.RECORD_SIZE + ResultStore.HIGHEST_OFFSET);
+    }
+
+    public int lowest(int frame) {
+        return records.getInt(frame * ResultStore.RECORD_SIZE + ResultStore.LOWEST_OFFSET);
+    }
+
+    /**
+     * Writes the results in the CSV layout used for plotting.
+     * Frames that were never written are left out. If any frame kept an earlier measurement, a Carried
+     * column tells which ones, and if any couldn't be analyzed, a Failed column tells those apart from
+     * the frames where nothing was detected.
+     * @param file the CSV file to write
+     * @throws IOException if the file can't be written
+     */
+    public void exportCsv(File file) throws IOException {
+        DecimalFormat df = new DecimalFormat("#.###");
+        StringBuilder line = new StringBuilder(128);
+        boolean anyCarried = false;
+        boolean anyFailed = false;
+        for (int i = 0; i < count; i++) {
+            anyCarried |= isCarried(i);
+            anyFailed |= isFailed(i);
+        }
+        try (Writer out = openWriter(file)) {
+            out.write("Filename,Elapsed Time (sec),Highest Pixel,Lowest Pixel" + (anyCarried ? ",Carried" : "")
+                    + (anyFailed ? ",Failed" : "") + "\n");
+            for (int i = 0; i < count; i++) {
+                if (!isWritten(i)) {
+                    continue;
+                }
+                line.setLength(0);
+                appendCsv(line, filename(i)).append(',');
+                appendCsv(line, df.format(elapsed(i))).append(',');
+                if (isDetected(i)) {
+                    line.append(highest(i)).append(',').append(lowest(i));
+                } else {
+                    // N/A indicates nothing detected
+                    line.append("N/A,N/A");
+                }
+                if (anyCarried) {
+                    line.append(',').append(isCarried(i) ? "yes" : "no");
+                }
+                if (anyFailed) {
+                    line.append(',').append(isFailed(i) ? "yes" : "no");
+                }
+                line.append('\n');
+                out.append(line);
+            }
+        }
+    }
+
+    /**
+     * Writes the results in the plain text layout.
+     * Frames that were never written are left out.
+     * @param file the text file to write
+     * @throws IOException if the file can't be written
+     */
+    public void exportText(File file) throws IOException {
+        DecimalFormat df = new DecimalFormat("#.###");
+        StringBuilder line = new StringBuilder(128);
+        try (Writer out = openWriter(file)) {
+            for (int i = 0; i < count; i++) {
+                if (!isWritten(i)) {
+                    continue;
+                }
+                line.setLength(0);
+                line.append("Image ").append(filename(i));
+                if (isDetected(i)) {
+                    line.append(" highest pixel: ").append(highest(i))
+                            .append(" lowest pixel: ").append(lowest(i));
+                } else {
+                    line.append(" highest pixel: N/A lowest pixel: N/A");
+                }
+                line.append(" elapsed time: ").append(df.format(elapsed(i)));
+                if (isCarried(i)) {
+                    line.append(" (unchanged, measurement carried forward)");
+                }
+                if (isFailed(i)) {
+                    line.append(" (failed, the image couldn't be analyzed)");
+                }
+                line.append(System.lineSeparator());
+                out.append(line);
+            }
+        }
+    }
+
+    private static Writer openWriter(File file) throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8), 1 << 16);
+    }
+
+    static StringBuilder appendCsv(StringBuilder line, String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+            return line.append(value);
+        }
+        return line.append('"').append(value.replace("\"", "\"\"")).append('"');
+    }
+
+    @Override
+    public void close() throws IOException {
+        raf.close();
+    }
+}
@@ -0,0 +1,244 @@
+import processing.data.JSONArray;
+import processing.data.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ShardCoordinator class.
+ *
+ * <p>Runs the analysis in several worker processes instead of one JVM: the images are split into
+ * contiguous shards, each measured by a {@link ShardWorker} with its own OpenCV heap and GC.
+ * Each worker writes its own result store, which is merged into the run's store as it finishes, so the
+ * exported results are in image order like a normal run.
+ *
+ * <p>A worker that dies, e.g. from a native crash, is started again from the first image it didn't
+ * measure. An image a worker dies on {@value #MAX_ATTEMPTS} times in a row is skipped and left out of
+ * the results. In background mode each worker learns its own background from the start of its shard.
+ * Workers report each image, which is counted in the {@link BatchJob}. Cancelling the job
+ * stops the workers, pausing only holds back restarts.
+ */
+public class ShardCoordinator {
+
+    /** Times a worker is started on the same image before that image is skipped */
+    public static final int MAX_ATTEMPTS = 3;
+
+    private final File workDir;
+    private final int shardCount;
+    private final Set<Process> running = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param workDir where the spec, shard stores and worker logs go
+     * @param shardCount number of worker processes
+     */
+    public ShardCoordinator(File workDir, int shardCount) {
+        this.workDir = workDir;
+        this.shardCount = shardCount;
+    }
+
+    /**
+     * Writes what the workers need to measure like the GUI analysis does
+     * @param file the spec file
+     * @param files all images of the run
+     * @param config the values to measure with
+     * @param width width the images are resized to
+     * @param height height the images are resized to
+     * @param timeInterval seconds between images
+     * @param tiled measure at full resolution with the {@link TiledProcessor}
+     * @param coarseFactor measure coarse to fine with this factor, see {@link CoarseToFineProcessor}, or 0 for off
+     * @param pipeline pipeline graph file to use instead of the built in pipeline, or null
+     * @param tileThreads threads of each worker's tiled processor
+     * @param background learning rate and threshold for {@link BackgroundPipeline}, or null to threshold colors
+     * @param normalize reference median blue, green and red for {@link IlluminationNormalizer}, or null to leave the lighting alone
+     * @param raw raw frame file to read instead of the files, see {@link RawFrameFile}, or null
+     */
+    static void writeSpec(File file, File[] files, PipelineConfig config, int width, int height, double timeInterval,
+                          boolean tiled, int coarseFactor, File pipeline, int tileThreads, double[] background, double[] normalize,
+                          File raw) throws IOException {
+        JSONObject spec = new JSONObject();
+        JSONArray paths = new JSONArray();
+        for (File f : files) {
+            paths.append(f.getAbsolutePath());
+        }
+        spec.setJSONArray("files", paths);
+        spec.setJSONObject("config", config.toJSON());
+        spec.setInt("width", width);
+        spec.setInt("height", height);
+        spec.setDouble("interval", timeInterval);
+        spec.setBoolean("tiled", tiled);
+        spec.setInt("tileThreads", tileThreads);
+        if (coarseFactor > 0) {
+            spec.setInt("coarse", coarseFactor);
+        }
+        if (pipeline != null) {
+            spec.setString("pipeline", pipeline.getAbsolutePath());
+        }
+        if (background != null) {
+            spec.setJSONArray("background", new JSONArray().append(background[0]).append(background[1]));
+        }
+        if (raw != null) {
+            spec.setString("raw", raw.getAbsolutePath());
+        }
+        if (normalize != null) {
+            spec.setJSONArray("normalize", new JSONArray().append(normalize[0]).append(normalize[1]).append(normalize[2]));
+        }
+        Files.write(file.toPath(), spec.format(-1).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Measures all images of the spec and merges the results into the store. Blocks until every shard
+     * is done or the job is cancelled.
+     * @param spec the spec from {@link #writeSpec}
+     * @param count number of images in the spec
+     * @param store the run's store, with one record per image
+     * @param job counts the measured images and tells the workers to stop
+     */
+    public void run(File spec, int count, ResultStore store, BatchJob job) {
+        workDir.mkdirs();
+        int shards = Math.max(1, Math.min(shardCount, count));
+        ExecutorService executor = Executors.newFixedThreadPool(shards);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int s = 0; s < shards; s++) {
+            // Contiguous ranges, the first count % shards shards get one image more
+            int from = (int)((long) count * s / shards);
+            int to = (int)((long) count * (s + 1) / shards);
+            int shard = s;
+            futures.add(executor.submit(() -> runShard(shard, spec, from, to, store, job)));
+        }
+        executor.shutdown();
+
+        try {
+            while (!executor.awaitTermination(200, TimeUnit.MILLISECONDS)) {
+                if (job.state() == BatchJob.State.CANCELLING) {
+                    for (Process process : running) {
+                        process.destroy();
+                    }
+                }
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            for (Process process : running) {
+                process.destroy();
+            }
+        } catch (ExecutionException e) {
+            e.getCause().printStackTrace();
+        }
+    }
+
+    /**
+     * Runs workers on one shard until every image is measured or skipped
+     */
+    private void runShard(int shard, File spec, int from, int to, ResultStore store, BatchJob job) {
+        int next = from;
+        int failures = 0;
+        int attempt = 0;
+        while (next < to) {
+            // Blocks while paused, gives up when cancelled
+            if (!job.awaitNext()) {
+                return;
+            }
+            attempt++;
+            File shardStore = new File(workDir, "shard_" + shard + "_" + attempt + ".lrs");
+            File log = new File(workDir, "shard_" + shard + "_" + attempt + ".log");
+            int exitCode;
+            try {
+                exitCode = runWorker(spec, next, to, shardStore, log, job);
+            } catch (IOException e) {
+                System.out.println("Shard " + shard + ": unable to start worker: " + e.getMessage());
+                exitCode = -1;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            int measured = merge(shardStore, next, store);
+            shardStore.delete();
+            if (exitCode == 0 && next + measured == to) {
+                log.delete();
+                return;
+            }
+            if (job.state() == BatchJob.State.CANCELLING) {
+                return;
+            }
+
+            failures = measured == 0 ? failures + 1 : 1;
+            next += measured;
+            System.out.println("Shard " + shard + ": worker exited with " + exitCode + " at image " + next + ", see " + log);
+            if (failures >= MAX_ATTEMPTS) {
+                System.out.println("Shard " + shard + ": skipping image " + next + " after " + failures + " failed attempts");
+                next++;
+                failures = 0;
+                // The skipped image counts as done for the progress
+                job.frameDone();
+            }
+        }
+    }
+
+    private int runWorker(File spec, int from, int to, File shardStore, File log, BatchJob job) throws IOException, InterruptedException {
+        // Same JVM, classes and native libraries as this process
+        String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+        ProcessBuilder builder = new ProcessBuilder(java,
+                "-cp", System.getProperty("java.class.path"),
+                "-Djava.library.path=" + System.getProperty("java.library.path"),
+                "ShardWorker", spec.getAbsolutePath(), String.valueOf(from), String.valueOf(to), shardStore.getAbsolutePath());
+        builder.redirectError(log);
+        Process process = builder.start();
+        running.add(process);
+        try (BufferedReader out = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = out.readLine()) != null) {
+                if (line.equals(ShardWorker.PROGRESS)) {
+                    job.frameDone();
+                }
+            }
+            return process.waitFor();
+        } finally {
+            running.remove(process);
+        }
+    }
+
+    /**
+     * Copies the measured images of a shard store into the run's store
+     * @return how many images from the start of the shard store were measured
+     */
+    private static int merge(File shardStore, int from, ResultStore store) {
+        if (!shardStore.exists()) {
+            return 0;
+        }
+        try (ResultStoreReader reader = ResultStoreReader.open(shardStore)) {
+            int measured = 0;
+            // The worker goes in order, it stopped at the first unwritten record
+            while (measured < reader.size() && reader.isWritten(measured)) {
+                int frame = from + measured;
+                if (reader.isDetected(measured)) {
+                    store.write(frame, frame, reader.elapsed(measured), reader.highest(measured), reader.lowest(measured));
+                } else if (reader.isFailed(measured)) {
+                    store.writeFailed(frame, frame, reader.elapsed(measured));
+                } else {
+                    store.writeEmpty(frame, frame, reader.elapsed(measured));
+                }
+                measured++;
+            }
+            return measured;
+        } catch (IOException e) {
+            // E.g. the worker died before writing the header
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+import processing.data.JSONArray;
+import processing.data.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * ShardWorker class.
+ *
+ * <p>Measures a contiguous range of the images in its own process, started by {@link ShardCoordinator}.
+ * <pre>
+ *   java ShardWorker spec.json from to shard.lrs
+ * </pre>
+ * The spec holds everything the GUI analysis would use, see {@link ShardCoordinator#writeSpec}. Frames
+ * {@code from} (inclusive) to {@code to} (exclusive) are measured in order into a result store with one
+ * record per frame of the range, and {@value #PROGRESS} is printed after each one. A crash leaves the
+ * records of the finished frames in the store, so the coordinator knows where to carry on.
+ */
+public class ShardWorker {
+
+    /** Printed on its own line after each frame */
+    public static final String PROGRESS = "done";
+
+    static {
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+    }
+
+    public static void main(String[] args) {
+        if (args.length != 4) {
+            System.err.println("Usage: ShardWorker spec.json from to shard.lrs");
+            System.exit(2);
+        }
+        try {
+            run(new File(args[0]), Integer.parseInt(args[1]), Integer.parseInt(args[2]), new File(args[3]));
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    private static void run(File specFile, int from, int to, File out) throws IOException {
+        JSONObject spec;
+        try (Reader reader = new InputStreamReader(new FileInputStream(specFile), StandardCharsets.UTF_8)) {
+            spec = new JSONObject(reader);
+        }
+        JSONArray paths = spec.getJSONArray("files");
+        PipelineConfig config = PipelineConfig.fromJSON(spec.getJSONObject("config"));
+        Size displaySize = new Size(spec.getInt("width"), spec.getInt("height"));
+        double timeInterval = spec.getDouble("interval");
+
+        MaskPipeline pipeline;
+        if (spec.hasKey("background")) {
+            JSONArray background = spec.getJSONArray("background");
+            pipeline = new BackgroundPipeline(background.getDouble(0), background.getDouble(1));
+        } else if (spec.hasKey("pipeline")) {
+            pipeline = PipelineGraph.load(new File(spec.getString("pipeline"))).compile();
+        } else {
+            pipeline = new GripPipeline();
+        }
+        IlluminationNormalizer normalizer = null;
+        if (spec.hasKey("normalize")) {
+            JSONArray reference = spec.getJSONArray("normalize");
+            normalizer = new IlluminationNormalizer(new double[] {reference.getDouble(0), reference.getDouble(1), reference.getDouble(2)});
+        }
+        TiledProcessor tiledProcessor = null;
+        if (spec.getBoolean("tiled", false)) {
+            tiledProcessor = new TiledProcessor(TiledProcessor.DEFAULT_TILE_SIZE, spec.getInt("tileThreads", 1));
+        }
+
+        CoarseToFineProcessor coarseProcessor = null;
+        if (spec.hasKey("coarse")) {
+            coarseProcessor = new CoarseToFineProcessor(spec.getInt("coarse"));
+        }
+
+        RawFrameFile raw = spec.hasKey("raw") ? RawFrameFile.open(new File(spec.getString("raw"))) : null;
+
+        String[] filenames = new String[to - from];
+        for (int i = from; i < to; i++) {
+            filenames[i - from] = raw != null ? raw.name(i) : new File(paths.getString(i)).getName();
+        }
+
+        try (ResultStore store = ResultStore.create(out, filenames)) {
+            for (int i = from; i < to; i++) {
+                int frame = i - from;
+                Mat sourceImage = raw != null ? raw.read(i, config, displaySize) : Imgcodecs.imread(paths.getString(i));
+                if (sourceImage.empty()) {
+                    // Unreadable image, record the frame instead of failing the whole shard
+                    System.err.println("Can't read " + paths.getString(i));
+                    store.writeFailed(frame, frame, timeInterval * i);
+                    System.out.println(PROGRESS);
+                    continue;
+                }
+                Blob blob;
+                if (tiledProcessor != null || coarseProcessor != null) {
+                    if (normalizer != null) {
+                        normalizer.apply(sourceImage, sourceImage, config, displaySize);
+                    }
+                    // The ROI was picked on the display sized image
+                    PipelineConfig fullConfig = config.transformROI(sourceImage.cols() / displaySize.width, sourceImage.rows() / displaySize.height, 0, 0);
+                    blob = tiledProcessor != null ? tiledProcessor.process(sourceImage, fullConfig) : coarseProcessor.process(sourceImage, fullConfig);
+                } else {
+                    Imgproc.resize(sourceImage, sourceImage, displaySize);
+                    if (normalizer != null) {
+                        normalizer.apply(sourceImage, sourceImage, config, displaySize);
+                    }
+                    pipeline.process(sourceImage, config);
+                    blob = BlobFinder.largest(pipeline.output());
+                }
+                sourceImage.release();
+
+                if (blob != null) {
+                    store.write(frame, frame, timeInterval * i, blob.highest(), blob.lowest());
+                } else {
+                    store.writeEmpty(frame, frame, timeInterval * i);
+                }
+                System.out.println(PROGRESS);
+            }
+        } finally {
+            if (tiledProcessor != null) {
+                tiledProcessor.shutdown();
+            }
+            if (raw != null) {
+                raw.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,264 @@
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ThumbnailAtlas class.
+ *
+ * <p>Small BGR thumbnails of every frame in one file, at two sizes: a preview and a much smaller
+ * thumbnail for a filmstrip. Every thumbnail of a level has the same size, so a frame is found by
+ * its number alone and reading one is a single small read, whatever the number of frames.
+ *
+ * <p>File layout:
+ * <pre>
+ *   header   magic, version, frame count, level count, width and height of each level
+ *   flags    one byte per frame, 1 once the frame's thumbnails are written
+ *   levels   frame count * width * height * 3 bytes per level, 8 byte aligned
+ * </pre>
+ *
+ * <p>{@link #submit(int, Mat)} only copies the frame, shrinking and writing happen on a background
+ * thread. When the writer falls behind, the calling thread shrinks and writes itself.
+ */
+public class ThumbnailAtlas implements Closeable {
+
+    public static final int MAGIC = 0x4C425441; // "LBTA"
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 32;
+    public static final int LEVELS = 2;
+
+    /** Longest side of the preview level */
+    public static final int PREVIEW_SIZE = 192;
+    /** Longest side of the filmstrip level */
+    public static final int STRIP_SIZE = 48;
+
+    private static final int CHANNELS = 3;
+    // Queued frames are full size copies, so only a few
+    private static final int WRITE_QUEUE = 8;
+
+    private final FileChannel channel;
+    private final int count;
+    private final int[] widths = new int[LEVELS];
+    private final int[] heights = new int[LEVELS];
+    private final long[] levelOffsets = new long[LEVELS];
+    private final ExecutorService writer;
+
+    private ThumbnailAtlas(FileChannel channel, int count, int[] widths, int[] heights, boolean writable) {
+        this.channel = channel;
+        this.count = count;
+        long offset = (HEADER_SIZE + count + 7) & ~7L;
+        for (int level = 0; level < LEVELS; level++) {
+            this.widths[level] = widths[level];
+            this.heights[level] = heights[level];
+            levelOffsets[level] = offset;
+            offset += (long) count * thumbnailBytes(level);
+        }
+        this.writer = writable ? new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(WRITE_QUEUE), new ThreadPoolExecutor.CallerRunsPolicy()) : null;
+    }
+
+    /**
+     * Creates an atlas for frames of the given size
+     * @param file the file to create, any existing file is replaced
+     * @param count number of frames
+     * @param frameWidth width of the frames that will be submitted
+     * @param frameHeight height of the frames that will be submitted
+     * @return the open atlas
+     * @throws IOException if the file can't be created
+     */
+    public static ThumbnailAtlas create(File file, int count, int frameWidth, int frameHeight) throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+        int[] widths = new int[LEVELS];
+        int[] heights = new int[LEVELS];
+        int[] sizes = {PREVIEW_SIZE, STRIP_SIZE};
+        for (int level = 0; level < LEVELS; level++) {
+            double scale = Math.min(1.0, (double) sizes[level] / Math.max(frameWidth, frameHeight));
+            widths[level] = Math.max(1, (int) Math.round(frameWidth * scale));
+            heights[level] = Math.max(1, (int) Math.round(frameHeight * scale));
+        }
+
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putInt(count).putInt(LEVELS);
+            for (int level = 0; level < LEVELS; level++) {
+                header.putInt(widths[level]).putInt(heights[level]);
+            }
+            header.flip();
+            channel.write(header, 0);
+            // Unwritten flags read back as 0
+            ThumbnailAtlas atlas = new ThumbnailAtlas(channel, count, widths, heights, true);
+            channel.write(ByteBuffer.allocate(1), atlas.levelOffsets[LEVELS - 1] + (long) count * atlas.thumbnailBytes(LEVELS - 1) - 1);
+            return atlas;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens an atlas for reading
+     * @param file the atlas file
+     * @return the open atlas
+     * @throws IOException if the file can't be read or isn't an atlas
+     */
+    public static ThumbnailAtlas open(File file) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            channel.read(header, 0);
+            header.flip();
+            if (header.getInt() != MAGIC) {
+                throw new IOException("Not a thumbnail atlas: " + file);
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported thumbnail atlas version " + version);
+            }
+            int count = header.getInt();
+            if (header.getInt() != LEVELS) {
+                throw new IOException("Unexpected number of levels in " + file);
+            }
+            int[] widths = new int[LEVELS];
+            int[] heights = new int[LEVELS];
+            for (int level = 0; level < LEVELS; level++) {
+                widths[level] = header.getInt();
+                heights[level] = header.getInt();
+            }
+            return new ThumbnailAtlas(channel, count, widths, heights, false);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Queues a frame to be shrunk to every level and written
+     * @param frame the frame number
+     * @param image the frame, copied so the caller can reuse it
+     */
+    public void submit(int frame, Mat image) {
+        checkFrame(frame);
+        Mat copy = image.clone();
+        writer.execute(() -> {
+            try {
+                write(frame, copy);
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                copy.release();
+            }
+        });
+    }
+
+    private void write(int frame, Mat image) throws IOException {
+        Mat source = image;
+        for (int level = 0; level < LEVELS; level++) {
+            // Each level is shrunk from the one above, not from the full frame
+            Mat thumbnail = new Mat();
+            Imgproc.resize(source, thumbnail, new Size(widths[level], heights[level]), 0, 0, Imgproc.INTER_AREA);
+            byte[] pixels = new byte[thumbnailBytes(level)];
+            thumbnail.get(0, 0, pixels);
+            writeFully(ByteBuffer.wrap(pixels), levelOffsets[level] + (long) frame * thumbnailBytes(level));
+            if (source != image) {
+                source.release();
+            }
+            source = thumbnail;
+        }
+        source.release();
+        // Flag last so a reader never sees a half written thumbnail
+        writeFully(ByteBuffer.wrap(new byte[] {1}), HEADER_SIZE + frame);
+    }
+
+    /**
+     * @return true if the frame's thumbnails have been written
+     */
+    public boolean has(int frame) throws IOException {
+        checkFrame(frame);
+        ByteBuffer flag = ByteBuffer.allocate(1);
+        channel.read(flag, HEADER_SIZE + frame);
+        return flag.get(0) != 0;
+    }
+
+    /**
+     * Reads a thumbnail
+     * @param frame the frame number
+     * @param level 0 for the preview, 1 for the filmstrip
+     * @return the BGR thumbnail, owned by the caller, or null if it wasn't written
+     * @throws IOException if the file can't be read
+     */
+    public Mat read(int frame, int level) throws IOException {
+        if (!has(frame)) {
+            return null;
+        }
+        ByteBuffer pixels = ByteBuffer.allocate(thumbnailBytes(level));
+        long position = levelOffsets[level] + (long) frame * thumbnailBytes(level);
+        while (pixels.hasRemaining()) {
+            if (channel.read(pixels, position + pixels.position()) < 0) {
+                throw new IOException("Thumbnail atlas is truncated");
+            }
+        }
+        Mat thumbnail = new Mat(heights[level], widths[level], CvType.CV_8UC3);
+        thumbnail.put(0, 0, pixels.array());
+        return thumbnail;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public int width(int level) {
+        return widths[level];
+    }
+
+    public int height(int level) {
+        return heights[level];
+    }
+
+    /**
+     * Waits for queued thumbnails to be written and closes the file
+     */
+    @Override
+    public void close() throws IOException {
+        if (writer != null) {
+            writer.shutdown();
+            try {
+                writer.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        channel.close();
+    }
+
+    private int thumbnailBytes(int level) {
+        return widths[level] * heights[level] * CHANNELS;
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+
+    private void checkFrame(int frame) {
+        if (frame < 0 || frame >= count) {
+            throw new IndexOutOfBoundsException("Frame " + frame + " outside of atlas with " + count + " frames");
+        }
+    }
+}
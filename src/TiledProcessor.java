@@ -0,0 +1,294 @@
+import org.opencv.core.*;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * TiledProcessor class.
+ *
+ * <p>Runs a {@link GripPipeline} over a large image one tile at a time and measures the largest blob.
+ * Every tile is processed with a halo wide enough for the blur and morphology kernels, so the
+ * core of each tile matches what processing the whole image would give. Only the decoded source
+ * is ever full size, the pipeline outputs are tile sized and owned by the worker threads.
+ *
+ * <p>Blobs are labelled per tile and stitched across tile borders using the labels
+ * along the edges of each core.
+ *
+ * <p>The largest blob is the one with the most foreground pixels, and its area is that pixel count.
+ * The other paths pick the contour with the largest {@code contourArea} (see {@link BlobFinder#largest(Mat)}),
+ * which is the area inside the outline through the edge pixels, so holes count and about half of each
+ * edge pixel doesn't. When two blobs are close in size, or one has large holes, the tiled path can
+ * pick a different one, and its area is never quite the same number.
+ */
+public class TiledProcessor {
+
+    public static final int DEFAULT_TILE_SIZE = 1024;
+
+    private final int tileSize;
+    private final ExecutorService executor;
+    private final BlockingQueue<GripPipeline> pipelines;
+
+    /**
+     * @param tileSize width and height of a tile core in pixels
+     * @param threads number of tiles processed in parallel
+     */
+    public TiledProcessor(int tileSize, int threads) {
+        this.tileSize = tileSize;
+        this.executor = Executors.newFixedThreadPool(threads);
+        this.pipelines = new ArrayBlockingQueue<>(threads);
+        for (int i = 0; i < threads; i++) {
+            pipelines.add(new GripPipeline());
+        }
+    }
+
+    /**
+     * Processes the image tile by tile.
+     * @param source the full image
+     * @param config the values used for every tile, ROI in source image coordinates
+     * @return the largest blob in source image coordinates, or null if nothing was found
+     */
+    public Blob process(Mat source, PipelineConfig config) {
+        int halo = GripPipeline.haloRadius(config);
+        int tilesX = (source.cols() + tileSize - 1) / tileSize;
+        int tilesY = (source.rows() + tileSize - 1) / tileSize;
+
+        List<Future<TileResult>> futures = new ArrayList<>(tilesX * tilesY);
+        for (int ty = 0; ty < tilesY; ty++) {
+            for (int tx = 0; tx < tilesX; tx++) {
+                int x = tx * tileSize;
+                int y = ty * tileSize;
+                Rect core = new Rect(x, y, Math.min(tileSize, source.cols() - x), Math.min(tileSize, source.rows() - y));
+                futures.add(executor.submit(() -> processTile(source, core, halo, config)));
+            }
+        }
+
+        TileResult[] tiles = new TileResult[futures.size()];
+        try {
+            for (int i = 0; i < tiles.length; i++) {
+                tiles[i] = futures.get(i).get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Tile processing failed", e.getCause());
+        }
+
+        return stitch(tiles, tilesX, tilesY);
+    }
+
+    /**
+     * Stops the worker threads
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    private TileResult processTile(Mat source, Rect core, int halo, PipelineConfig config) throws InterruptedException {
+        // Tile including its halo, clipped to the image
+        int x0 = Math.max(0, core.x - halo);
+        int y0 = Math.max(0, core.y - halo);
+        int x1 = Math.min(source.cols(), core.x + core.width + halo);
+        int y1 = Math.min(source.rows(), core.y + core.height + halo);
+        Mat tile = source.submat(y0, y1, x0, x1);
+
+        GripPipeline pipeline = pipelines.take();
+        TileResult result;
+        try {
+            // ROI relative to the tile
+            pipeline.process(tile, config.transformROI(1, 1, -x0, -y0));
+            Mat mask = pipeline.cvDilateOutput().submat(new Rect(core.x - x0, core.y - y0, core.width, core.height));
+            result = label(mask, core);
+        } finally {
+            pipelines.put(pipeline);
+        }
+        return result;
+    }
+
+    private TileResult label(Mat mask, Rect core) {
+        Mat labels = new Mat();
+        Mat stats = new Mat();
+        Mat centroids = new Mat();
+        // 8 connectivity, the same as the contours the analysis uses
+        int n = Imgproc.connectedComponentsWithStats(mask, labels, stats, centroids, 8, CvType.CV_32S);
+
+        TileResult result = new TileResult(n);
+        int[] stat = new int[n * 5];
+        double[] centroid = new double[n * 2];
+        stats.get(0, 0, stat);
+        centroids.get(0, 0, centroid);
+        for (int i = 1; i < n; i++) {
+            long area = stat[i * 5 + Imgproc.CC_STAT_AREA];
+            result.area[i] = area;
+            result.left[i] = core.x + stat[i * 5 + Imgproc.CC_STAT_LEFT];
+            result.top[i] = core.y + stat[i * 5 + Imgproc.CC_STAT_TOP];
+            result.right[i] = result.left[i] + stat[i * 5 + Imgproc.CC_STAT_WIDTH];
+            result.bottom[i] = result.top[i] + stat[i * 5 + Imgproc.CC_STAT_HEIGHT];
+            result.sumX[i] = (core.x + centroid[i * 2]) * area;
+            result.sumY[i] = (core.y + centroid[i * 2 + 1]) * area;
+        }
+
+        // Keep only the labels along the edges for stitching
+        int w = core.width;
+        int h = core.height;
+        int[] all = new int[w * h];
+        labels.get(0, 0, all);
+        result.topRow = new int[w];
+        result.bottomRow = new int[w];
+        result.leftCol = new int[h];
+        result.rightCol = new int[h];
+        System.arraycopy(all, 0, result.topRow, 0, w);
+        System.arraycopy(all, (h - 1) * w, result.bottomRow, 0, w);
+        for (int y = 0; y < h; y++) {
+            result.leftCol[y] = all[y * w];
+            result.rightCol[y] = all[y * w + w - 1];
+        }
+
+        labels.release();
+        stats.release();
+        centroids.release();
+        return result;
+    }
+
+    private Blob stitch(TileResult[] tiles, int tilesX, int tilesY) {
+        // Give every blob of every tile a global id
+        int[] base = new int[tiles.length];
+        int total = 0;
+        for (int i = 0; i < tiles.length; i++) {
+            base[i] = total;
+            total += tiles[i].n;
+        }
+        int[] parent = new int[total];
+        for (int i = 0; i < total; i++) {
+            parent[i] = i;
+        }
+
+        // Merge blobs that touch across a tile border (8 connectivity)
+        for (int ty = 0; ty < tilesY; ty++) {
+            for (int tx = 0; tx < tilesX; tx++) {
+                int a = ty * tilesX + tx;
+                if (tx + 1 < tilesX) {
+                    int b = a + 1;
+                    unionEdges(parent, tiles[a].rightCol, base[a], tiles[b].leftCol, base[b]);
+                }
+                if (ty + 1 < tilesY) {
+                    int b = a + tilesX;
+                    unionEdges(parent, tiles[a].bottomRow, base[a], tiles[b].topRow, base[b]);
+                }
+                if (tx + 1 < tilesX && ty + 1 < tilesY) {
+                    int b = a + tilesX + 1;
+                    unionLabels(parent, last(tiles[a].bottomRow), base[a], tiles[b].topRow[0], base[b]);
+                }
+                if (tx > 0 && ty + 1 < tilesY) {
+                    int b = a + tilesX - 1;
+                    unionLabels(parent, tiles[a].bottomRow[0], base[a], last(tiles[b].topRow), base[b]);
+                }
+            }
+        }
+
+        // Sum up the pieces of each merged blob
+        long[] area = new long[total];
+        int[] left = new int[total];
+        int[] top = new int[total];
+        int[] right = new int[total];
+        int[] bottom = new int[total];
+        double[] sumX = new double[total];
+        double[] sumY = new double[total];
+        for (int t = 0; t < tiles.length; t++) {
+            TileResult tile = tiles[t];
+            for (int i = 1; i < tile.n; i++) {
+                int root = find(parent, base[t] + i);
+                if (area[root] == 0) {
+                    left[root] = tile.left[i];
+                    top[root] = tile.top[i];
+                    right[root] = tile.right[i];
+                    bottom[root] = tile.bottom[i];
+                } else {
+                    left[root] = Math.min(left[root], tile.left[i]);
+                    top[root] = Math.min(top[root], tile.top[i]);
+                    right[root] = Math.max(right[root], tile.right[i]);
+                    bottom[root] = Math.max(bottom[root], tile.bottom[i]);
+                }
+                area[root] += tile.area[i];
+                sumX[root] += tile.sumX[i];
+                sumY[root] += tile.sumY[i];
+            }
+        }
+
+        int largest = -1;
+        for (int i = 0; i < total; i++) {
+            if (area[i] > 0 && (largest < 0 || area[i] > area[largest])) {
+                largest = i;
+            }
+        }
+        if (largest < 0) {
+            return null;
+        }
+        return new Blob(left[largest], top[largest], right[largest] - left[largest], bottom[largest] - top[largest],
+                area[largest], sumX[largest] / area[largest], sumY[largest] / area[largest]);
+    }
+
+    private static void unionEdges(int[] parent, int[] edgeA, int baseA, int[] edgeB, int baseB) {
+        for (int i = 0; i < edgeA.length; i++) {
+            if (edgeA[i] == 0) {
+                continue;
+            }
+            for (int j = Math.max(0, i - 1); j <= Math.min(edgeB.length - 1, i + 1); j++) {
+                unionLabels(parent, edgeA[i], baseA, edgeB[j], baseB);
+            }
+        }
+    }
+
+    private static void unionLabels(int[] parent, int labelA, int baseA, int labelB, int baseB) {
+        // Label 0 is background
+        if (labelA == 0 || labelB == 0) {
+            return;
+        }
+        int rootA = find(parent, baseA + labelA);
+        int rootB = find(parent, baseB + labelB);
+        if (rootA != rootB) {
+            parent[Math.max(rootA, rootB)] = Math.min(rootA, rootB);
+        }
+    }
+
+    private static int find(int[] parent, int i) {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    private static int last(int[] edge) {
+        return edge[edge.length - 1];
+    }
+
+    /**
+     * Blob statistics of one tile core, in source image coordinates.
+     */
+    private static class TileResult {
+        final int n;
+        final long[] area;
+        final int[] left, top, right, bottom;
+        final double[] sumX, sumY;
+        int[] topRow, bottomRow, leftCol, rightCol;
+
+        TileResult(int n) {
+            this.n = n;
+            area = new long[n];
+            left = new int[n];
+            top = new int[n];
+            right = new int[n];
+            bottom = new int[n];
+            sumX = new double[n];
+            sumY = new double[n];
+        }
+    }
+}